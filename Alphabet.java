@@ -1,6 +1,8 @@
 package enigma;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+
+import static enigma.EnigmaException.*;
 
 /** An alphabet of encodable characters.  Provides a mapping from characters
  *  to and from indices into the alphabet.
@@ -8,14 +10,47 @@ import java.util.ArrayList;
  */
 class Alphabet {
 
-    /** Alphabet in a form of an Arraylist of chars. */
-    private ArrayList<Character> alphabets = new ArrayList<Character>();
-
     /** A new alphabet containing CHARS. The K-th character has index
      *  K (numbering from 0). No character may be duplicated. */
     Alphabet(String chars) {
-        for (int index = 0; index < chars.length(); index++) {
-            alphabets.add(chars.charAt(index));
+        _chars = chars.toCharArray();
+        char lo = Character.MAX_VALUE;
+        char hi = Character.MIN_VALUE;
+        for (char c : _chars) {
+            lo = (char) Math.min(lo, c);
+            hi = (char) Math.max(hi, c);
+        }
+        int span = _chars.length == 0 ? 0 : hi - lo + 1;
+        if (span <= Math.max(MIN_DENSE_SPAN, DENSE_FACTOR * _chars.length)) {
+            _base = _chars.length == 0 ? 0 : lo;
+            _dense = new int[span];
+            Arrays.fill(_dense, -1);
+            _keys = null;
+            _values = null;
+            for (int index = 0; index < _chars.length; index++) {
+                int slot = _chars[index] - _base;
+                if (_dense[slot] >= 0) {
+                    throw error("duplicate character %c in alphabet",
+                                _chars[index]);
+                }
+                _dense[slot] = index;
+            }
+        } else {
+            _base = 0;
+            _dense = null;
+            int capacity = Integer.highestOneBit(_chars.length * 2) << 1;
+            _keys = new char[capacity];
+            _values = new int[capacity];
+            Arrays.fill(_values, -1);
+            for (int index = 0; index < _chars.length; index++) {
+                int slot = probe(_chars[index]);
+                if (_values[slot] >= 0) {
+                    throw error("duplicate character %c in alphabet",
+                                _chars[index]);
+                }
+                _keys[slot] = _chars[index];
+                _values[slot] = index;
+            }
         }
     }
 
@@ -24,26 +59,107 @@ class Alphabet {
         this("ABCDEFGHIJKLMNOPQRSTUVWXYZ");
     }
 
+    /** Return the alphabet of a byte configuration: the characters
+     *  0 to 255, so that each byte value is its own index. */
+    static Alphabet bytes() {
+        char[] chars = new char[BYTE_VALUES];
+        for (int index = 0; index < chars.length; index++) {
+            chars[index] = (char) index;
+        }
+        return new Alphabet(new String(chars));
+    }
+
+    /** Returns true iff I am the alphabet of a byte configuration. */
+    boolean isBytes() {
+        if (_chars.length != BYTE_VALUES) {
+            return false;
+        }
+        for (int index = 0; index < _chars.length; index++) {
+            if (_chars[index] != index) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Return the byte value written as two hexadecimal digits at
+     *  TEXT[INDEX .. INDEX+1], or -1 if there are no such digits. */
+    static int byteAt(CharSequence text, int index) {
+        if (index < 0 || index + 1 >= text.length()) {
+            return -1;
+        }
+        int high = Character.digit(text.charAt(index), 16);
+        int low = Character.digit(text.charAt(index + 1), 16);
+        return high < 0 || low < 0 ? -1 : high << 4 | low;
+    }
+
     /** Returns the size of the alphabet. */
     int size() {
-        return alphabets.size();
+        return _chars.length;
     }
 
     /** Returns true if CH is in this alphabet. */
     boolean contains(char ch) {
-        return alphabets.contains(ch);
+        return toInt(ch) >= 0;
     }
 
     /** Returns character number INDEX in the alphabet, where
      *  0 <= INDEX < size(). */
     char toChar(int index) {
-        return alphabets.get(index);
+        return _chars[index];
     }
 
     /** Returns the index of character CH which must be in
-     *  the alphabet. This is the inverse of toChar(). */
+     *  the alphabet. This is the inverse of toChar(). Returns -1 if CH
+     *  is not in the alphabet. */
     int toInt(char ch) {
-        return alphabets.indexOf(ch);
+        if (_dense != null) {
+            int slot = ch - _base;
+            if (slot < 0 || slot >= _dense.length) {
+                return -1;
+            }
+            return _dense[slot];
+        }
+        return _values[probe(ch)];
+    }
+
+    /** Return the slot of the open-addressed table holding CH, or the
+     *  empty slot where it would go. */
+    private int probe(char ch) {
+        int mask = _keys.length - 1;
+        int hash = ch * 0x9E3779B1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (_values[slot] >= 0 && _keys[slot] != ch) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
     }
 
+    /** Number of symbols in the alphabet of a byte configuration. */
+    static final int BYTE_VALUES = 256;
+
+    /** Alphabets whose characters span at most this many code points are
+     *  always indexed by a direct table. */
+    private static final int MIN_DENSE_SPAN = 256;
+
+    /** A direct table is also used when the span is at most this many
+     *  times the alphabet size. */
+    private static final int DENSE_FACTOR = 4;
+
+    /** The characters of this alphabet, in index order. */
+    private final char[] _chars;
+
+    /** Smallest character of a densely indexed alphabet. */
+    private final int _base;
+
+    /** _dense[C - _base] is the index of character C, or -1.  Null when
+     *  the alphabet is hashed instead. */
+    private final int[] _dense;
+
+    /** Keys of the open-addressed index of a sparse alphabet. */
+    private final char[] _keys;
+
+    /** _values[K] is the index of _keys[K], or -1 for an empty slot. */
+    private final int[] _values;
+
 }
@@ -0,0 +1,482 @@
+package enigma;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Scanner;
+
+import static enigma.EnigmaException.*;
+
+/** Micro-benchmarks for the cipher engine.  Each benchmark is run on
+ *  synthetic machines over a range of alphabet sizes and rotor counts,
+ *  and reports the time and the number of bytes allocated per
+ *  operation.  Run as
+ *
+ *      java enigma.Benchmarks [SECONDS [ITERATIONS [FORKS]]]
+ *
+ *  Each benchmark is first run for WARMUP_ITERATIONS untimed iterations
+ *  of SECONDS (default 0.2) seconds each, so that it is compiled before
+ *  it is timed, and then for ITERATIONS (default 5) timed iterations.
+ *  The mean time per operation and its standard deviation over the
+ *  iterations are reported.  With FORKS (default 0) greater than 0, the
+ *  benchmarks for each alphabet size and rotor count run in FORKS fresh
+ *  JVMs, one after another, so that what the JIT compiler learned from
+ *  one machine shape cannot skew the timing of the next.  Every result
+ *  is folded into a volatile sink so that no work is optimized away.
+ *  @author Jonny W.
+ */
+class Benchmarks {
+
+    /** Alphabet sizes to benchmark. */
+    private static final int[] ALPHABET_SIZES = { 26, 64, 1024 };
+
+    /** Rotor counts (including the reflector) to benchmark. */
+    private static final int[] ROTOR_COUNTS = { 3, 5, 8 };
+
+    /** Message lengths for bulk conversion. */
+    private static final int[] MESSAGE_SIZES = { 100, 10_000, 1_000_000 };
+
+    /** Run the benchmarks as described above, as specified by ARGS.  In
+     *  a forked JVM, ARGS are GROUP_OPTION, the kind of group ("all" or
+     *  "bytes"), the alphabet size, the rotor count, SECONDS and
+     *  ITERATIONS. */
+    public static void main(String... args) {
+        try {
+            if (args.length == 6 && args[0].equals(GROUP_OPTION)) {
+                new Benchmarks(seconds(args[4]), number(args[5], 1))
+                    .runGroup(args[1], number(args[2], 1),
+                              number(args[3], 1));
+                return;
+            }
+            if (args.length > 3) {
+                throw error("Usage: java enigma.Benchmarks [SECONDS "
+                            + "[ITERATIONS [FORKS]]]");
+            }
+            String seconds = args.length > 0 ? args[0] : "0.2";
+            String iterations = args.length > 1 ? args[1] : "5";
+            int forks = args.length > 2 ? number(args[2], 0) : 0;
+            Benchmarks bench =
+                new Benchmarks(seconds(seconds), number(iterations, 1));
+            System.out.printf("%-32s %6s %6s %14s %10s %12s%n",
+                              "benchmark", "alpha", "rotors", "ns/op",
+                              "sd", "B/op");
+            System.out.flush();
+            List<String[]> groups = new ArrayList<>();
+            for (int size : ALPHABET_SIZES) {
+                for (int rotors : ROTOR_COUNTS) {
+                    groups.add(new String[] { "all", "" + size,
+                                              "" + rotors });
+                }
+            }
+            for (int rotors : ROTOR_COUNTS) {
+                groups.add(new String[] { "bytes", "" + Alphabet.BYTE_VALUES,
+                                          "" + rotors });
+            }
+            for (String[] group : groups) {
+                if (forks == 0) {
+                    bench.runGroup(group[0], number(group[1], 1),
+                                   number(group[2], 1));
+                }
+                for (int fork = 0; fork < forks; fork++) {
+                    fork(group, seconds, iterations);
+                }
+            }
+            return;
+        } catch (EnigmaException excp) {
+            System.err.printf("Error: %s%n", excp.getMessage());
+        }
+        System.exit(1);
+    }
+
+    /** Run the benchmarks of the group GROUP in a fresh JVM, timing
+     *  ITERATIONS iterations of SECONDS seconds, and wait for it to
+     *  finish. */
+    private static void fork(String[] group, String seconds,
+                             String iterations) {
+        String java = System.getProperty("java.home") + File.separator
+            + "bin" + File.separator + "java";
+        ProcessBuilder builder =
+            new ProcessBuilder(java, "-cp",
+                               System.getProperty("java.class.path"),
+                               Benchmarks.class.getName(), GROUP_OPTION,
+                               group[0], group[1], group[2], seconds,
+                               iterations);
+        try {
+            int status = builder.inheritIO().start().waitFor();
+            if (status != 0) {
+                throw error("forked benchmark failed with status %d",
+                            status);
+            }
+        } catch (IOException excp) {
+            throw error("could not fork benchmark: %s", excp.getMessage());
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw error("interrupted");
+        }
+    }
+
+    /** Return the number of nanoseconds in TEXT, a positive number of
+     *  seconds. */
+    private static long seconds(String text) {
+        try {
+            double result = Double.parseDouble(text);
+            if (result > 0) {
+                return (long) (result * 1e9);
+            }
+        } catch (NumberFormatException excp) {
+            /* Reported below. */
+        }
+        throw error("bad number of seconds: %s", text);
+    }
+
+    /** Return the integer in TEXT, which must be at least LEAST. */
+    private static int number(String text, int least) {
+        try {
+            int result = Integer.parseInt(text);
+            if (result >= least) {
+                return result;
+            }
+        } catch (NumberFormatException excp) {
+            /* Reported below. */
+        }
+        throw error("bad number: %s", text);
+    }
+
+    /** A benchmark runner that times ITERATIONS iterations of NANOS
+     *  nanoseconds for each benchmark. */
+    Benchmarks(long nanos, int iterations) {
+        _nanos = nanos;
+        _iterations = iterations;
+    }
+
+    /** Run the benchmarks of KIND ("all" for runAll or "bytes" for
+     *  runBytes) for SIZE and ROTORS. */
+    void runGroup(String kind, int size, int rotors) {
+        if (kind.equals("bytes")) {
+            runBytes(rotors);
+        } else {
+            runAll(size, rotors);
+        }
+        System.out.flush();
+    }
+
+    /** Run every benchmark on a machine with an alphabet of SIZE
+     *  characters and ROTORS rotor slots. */
+    void runAll(int size, int rotors) {
+        Random random = new Random(size * 31 + rotors);
+        String chars = alphabetOf(size);
+        Alphabet alpha = new Alphabet(chars);
+        String config = String.join("\n", configLines(chars, rotors, random));
+        String settings = settingsLine(chars, rotors, random);
+
+        Main main = mainFor(config);
+        Machine machine = main.readConfig();
+        main.setUp(machine, settings);
+        int[] message = new int[1 << 12];
+        for (int index = 0; index < message.length; index++) {
+            message[index] = random.nextInt(size);
+        }
+        report("convert(int)", size, rotors, new Op() {
+            private int _next;
+            @Override
+            public long run() {
+                _next = (_next + 1) & (message.length - 1);
+                return machine.convert(message[_next]);
+            }
+        });
+
+        for (int length : MESSAGE_SIZES) {
+            StringBuilder text = new StringBuilder(length);
+            for (int index = 0; index < length; index++) {
+                text.append(chars.charAt(random.nextInt(size)));
+            }
+            String msg = text.toString();
+            report("convert(String) n=" + length, size, rotors,
+                   () -> machine.convert(msg).length());
+        }
+
+        ScalarMachineBatch batch =
+            new ScalarMachineBatch(machine.spec(), BATCH_LANES);
+        for (int lane = 0; lane < BATCH_LANES; lane++) {
+            batch.load(lane, machine);
+        }
+        int[] batchOut = new int[BATCH_LANES * message.length];
+        report("ScalarMachineBatch.convertSame", size, rotors, () -> {
+            batch.convertSame(message, 0, message.length, batchOut);
+            return batchOut[0];
+        });
+
+        String cycles = cycles(chars, random);
+        report("Permutation(cycles)", size, rotors,
+               () -> new Permutation(cycles, alpha).size());
+
+        report("Main.readConfig", size, rotors,
+               () -> mainFor(config).readConfig().numRotors());
+
+        report("Main.setUp", size, rotors, () -> {
+            main.setUp(machine, settings);
+            return machine.setting(rotors - 1);
+        });
+
+        String line = "* " + settings;
+        report("Main.configure (cached)", size, rotors, () -> {
+            main.configure(machine, line);
+            return machine.setting(rotors - 1);
+        });
+    }
+
+    /** Run the ByteMachine benchmark on a byte configuration with ROTORS
+     *  rotor slots. */
+    void runBytes(int rotors) {
+        Random random = new Random(rotors);
+        int size = Alphabet.BYTE_VALUES;
+        List<String> lines = new ArrayList<>();
+        lines.add(ConfigParser.BYTES_LINE);
+        lines.add(String.format(" %d %d", rotors, rotors - 1));
+        for (int index = 0; index < rotors + 2; index++) {
+            lines.add(String.format(" R%d M%02x %s", index,
+                                    random.nextInt(size),
+                                    byteCycles(random)));
+        }
+        List<Integer> values = new ArrayList<>();
+        for (int b = 0; b < size; b++) {
+            values.add(b);
+        }
+        Collections.shuffle(values, random);
+        StringBuilder reflector = new StringBuilder(" B R");
+        for (int index = 0; index < size; index += 2) {
+            reflector.append(String.format(" (%02x%02x)", values.get(index),
+                                           values.get(index + 1)));
+        }
+        lines.add(reflector.toString());
+        StringBuilder settings = new StringBuilder("* B");
+        for (int index = 1; index < rotors; index++) {
+            settings.append(" R").append(index);
+        }
+        settings.append(' ');
+        for (int index = 1; index < rotors; index++) {
+            settings.append(String.format("%02x", random.nextInt(size)));
+        }
+        settings.append(" (0001)");
+
+        Main main = mainFor(String.join("\n", lines));
+        Machine machine = main.readConfig();
+        main.configureBytes(machine, settings.toString());
+        ByteMachine bytes = new ByteMachine(machine);
+        byte[] block = new byte[1 << 20];
+        random.nextBytes(block);
+        report("ByteMachine.convert n=" + block.length, size, rotors, () -> {
+            bytes.convert(block, 0, block.length);
+            return block[0];
+        });
+    }
+
+    /** Measure OP, printing its cost per call under the name NAME for an
+     *  alphabet of SIZE characters and ROTORS rotors.  Untimed warm-up
+     *  iterations come first. */
+    private void report(String name, int size, int rotors, Op op) {
+        for (int iteration = 0; iteration < WARMUP_ITERATIONS;
+             iteration++) {
+            measure(op);
+        }
+        double sum = 0, sumSquares = 0, bytes = 0;
+        for (int iteration = 0; iteration < _iterations; iteration++) {
+            double[] result = measure(op);
+            sum += result[0];
+            sumSquares += result[0] * result[0];
+            bytes += result[1];
+        }
+        double mean = sum / _iterations;
+        double sd = _iterations < 2 ? 0
+            : Math.sqrt(Math.max(0, (sumSquares - sum * mean)
+                                 / (_iterations - 1)));
+        System.out.printf("%-32s %6d %6d %14.1f %10.1f %12.1f%n", name,
+                          size, rotors, mean, sd, bytes / _iterations);
+    }
+
+    /** Run OP repeatedly for _nanos nanoseconds and return its average
+     *  time in nanoseconds and allocation in bytes per call.  The
+     *  results of OP are summed and the sum stored in _sink, so the
+     *  compiler cannot discard the calls as dead code. */
+    private double[] measure(Op op) {
+        long calls = 0;
+        long sink = 0;
+        long bytes0 = allocatedBytes();
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int index = 0; index < BATCH; index++) {
+                sink += op.run();
+            }
+            calls += BATCH;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < _nanos);
+        long bytes = allocatedBytes() - bytes0;
+        _sink ^= sink;
+        return new double[] { (double) elapsed / calls,
+                              (double) bytes / calls };
+    }
+
+    /** Return the number of bytes allocated so far by this thread, or 0
+     *  if the JVM cannot tell. */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads =
+            ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    /** Return a Main reading the configuration CONFIG and no
+     *  messages. */
+    private static Main mainFor(String config) {
+        return new Main(config, new Scanner(""), System.out);
+    }
+
+    /** Return an alphabet of SIZE distinct characters. */
+    private static String alphabetOf(int size) {
+        if (size <= 26) {
+            return "ABCDEFGHIJKLMNOPQRSTUVWXYZ".substring(0, size);
+        }
+        StringBuilder result = new StringBuilder();
+        for (char c = '0'; result.length() < size; c++) {
+            if (Character.isLetterOrDigit(c)) {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    /** Return the lines of a configuration file over the alphabet CHARS
+     *  with ROTORS slots, all but one of them moving, using RANDOM to
+     *  generate the rotors. */
+    private static List<String> configLines(String chars, int rotors,
+                                            Random random) {
+        List<String> lines = new ArrayList<>();
+        lines.add(chars);
+        lines.add(String.format(" %d %d", rotors, rotors - 1));
+        for (int index = 0; index < rotors + 2; index++) {
+            lines.add(String.format(" R%d M%c %s", index,
+                                    chars.charAt(random.nextInt(
+                                        chars.length())),
+                                    cycles(chars, random)));
+        }
+        List<Character> letters = shuffled(chars, random);
+        StringBuilder reflector = new StringBuilder(" B R");
+        for (int index = 0; index + 1 < letters.size(); index += 2) {
+            reflector.append(" (").append(letters.get(index))
+                .append(letters.get(index + 1)).append(")");
+        }
+        lines.add(reflector.toString());
+        return lines;
+    }
+
+    /** Return a settings line (without its leading "* ") for a machine
+     *  over CHARS with ROTORS slots, from the configuration generated by
+     *  configLines, with one plugboard pair, using RANDOM. */
+    private static String settingsLine(String chars, int rotors,
+                                       Random random) {
+        StringBuilder result = new StringBuilder("B");
+        for (int index = 1; index < rotors; index++) {
+            result.append(" R").append(index);
+        }
+        result.append(' ');
+        for (int index = 1; index < rotors; index++) {
+            result.append(chars.charAt(random.nextInt(chars.length())));
+        }
+        result.append(" (").append(chars.charAt(0)).append(chars.charAt(1))
+            .append(')');
+        return result.toString();
+    }
+
+    /** Return a random permutation of CHARS in cycle notation, using
+     *  RANDOM. */
+    private static String cycles(String chars, Random random) {
+        StringBuilder result = new StringBuilder();
+        List<Character> letters = shuffled(chars, random);
+        int index = 0;
+        while (index < letters.size()) {
+            int len = 1 + random.nextInt(Math.min(letters.size() - index,
+                                                  CYCLE_LENGTH));
+            result.append('(');
+            for (int k = 0; k < len; k++, index++) {
+                result.append(letters.get(index));
+            }
+            result.append(") ");
+        }
+        return result.toString();
+    }
+
+    /** Return a random permutation of the byte values in the cycle
+     *  notation of a byte configuration, using RANDOM. */
+    private static String byteCycles(Random random) {
+        List<Integer> values = new ArrayList<>();
+        for (int b = 0; b < Alphabet.BYTE_VALUES; b++) {
+            values.add(b);
+        }
+        Collections.shuffle(values, random);
+        StringBuilder result = new StringBuilder();
+        int index = 0;
+        while (index < values.size()) {
+            int len = 1 + random.nextInt(Math.min(values.size() - index,
+                                                  CYCLE_LENGTH));
+            result.append('(');
+            for (int k = 0; k < len; k++, index++) {
+                result.append(String.format("%02x", values.get(index)));
+            }
+            result.append(") ");
+        }
+        return result.toString();
+    }
+
+    /** Return the characters of CHARS in an order chosen by RANDOM. */
+    private static List<Character> shuffled(String chars, Random random) {
+        List<Character> result = new ArrayList<>();
+        for (char c : chars.toCharArray()) {
+            result.add(c);
+        }
+        Collections.shuffle(result, random);
+        return result;
+    }
+
+    /** An operation being measured.  Its result is accumulated so that
+     *  the work cannot be optimized away. */
+    private interface Op {
+        /** Perform the operation once. */
+        long run();
+    }
+
+    /** Number of lanes in the ScalarMachineBatch benchmark. */
+    private static final int BATCH_LANES = 64;
+
+    /** Untimed iterations run before each benchmark is timed. */
+    private static final int WARMUP_ITERATIONS = 3;
+
+    /** First argument of main in a forked JVM. */
+    private static final String GROUP_OPTION = "--group";
+
+    /** Operations are timed in batches of this many calls. */
+    private static final int BATCH = 16;
+
+    /** Longest cycle in generated permutations. */
+    private static final int CYCLE_LENGTH = 40;
+
+    /** Length of each iteration in nanoseconds. */
+    private final long _nanos;
+
+    /** Number of timed iterations of each benchmark. */
+    private final int _iterations;
+
+    /** Accumulated results of all operations.  Volatile, so that its
+     *  stores cannot be elided. */
+    private volatile long _sink;
+
+}
@@ -0,0 +1,506 @@
+package enigma;
+
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static enigma.EnigmaException.*;
+
+/** A crib search in the manner of the Turing bombe.  A crib is plaintext
+ *  believed to occur in a ciphertext.  Placed at an offset, each crib
+ *  letter and the ciphertext letter under it form an edge of a menu,
+ *  labelled by how many steps the rotors have taken.  If the plugboard P
+ *  and the rotors after those steps, S, encipher A as B, then P(B) =
+ *  S(P(A)).  So a guess at P for one menu letter implies values for every
+ *  letter connected to it, and the menu's loops bring those implications
+ *  back to their start.
+ *
+ *  For each rotor order and position, every guess for the most connected
+ *  menu letter is closed under these implications, and under P being an
+ *  involution, in a bitset of (letter, value) pairs.  A guess that gives
+ *  some letter two values is false, and so is every other guess reached
+ *  in the same closure, since each implication holds in both directions.
+ *  A position where some guess survives is a stop, reported with the
+ *  plugboard pairs that guess implies.  Positions are tried in parallel
+ *  across rotor orders.
+ *
+ *  A letter never enciphers to itself when the reflector has no fixed
+ *  points, so offsets that would put a crib letter over the same
+ *  ciphertext letter are skipped.  Run as
+ *
+ *      java enigma.Bombe CONFIG CIPHERTEXT CRIB [OFFSET]
+ *
+ *  to print the stops for CRIB against the ciphertext in file CIPHERTEXT
+ *  under the configuration in file CONFIG, at OFFSET or at every
+ *  possible offset.
+ *  @author Jonny W.
+ */
+class Bombe {
+
+    /** Print the stops for the arguments ARGS (see above). */
+    public static void main(String... args) {
+        try {
+            if (args.length < 3 || args.length > 4) {
+                throw error("Usage: java enigma.Bombe CONFIG CIPHERTEXT CRIB "
+                            + "[OFFSET]");
+            }
+            Machine config =
+                new ConfigParser(new String(readFile(args[0]))).parse();
+            Bombe bombe = new Bombe(config, new String(readFile(args[1])),
+                                    args[2]);
+            if (args.length > 3) {
+                try {
+                    bombe.placeAt(Integer.parseInt(args[3]));
+                } catch (NumberFormatException excp) {
+                    throw error("bad offset: %s", args[3]);
+                }
+            }
+            for (Stop stop : bombe.run(ForkJoinPool.commonPool())) {
+                System.out.println(stop);
+            }
+            return;
+        } catch (EnigmaException excp) {
+            System.err.printf("Error: %s%n", excp.getMessage());
+        }
+        System.exit(1);
+    }
+
+    /** Return the contents of the file named NAME. */
+    private static byte[] readFile(String name) {
+        try {
+            return Files.readAllBytes(Paths.get(name));
+        } catch (IOException | InvalidPathException excp) {
+            throw error("could not open %s", name);
+        }
+    }
+
+    /** A bombe for the rotors in the catalog of CONFIG, searching for
+     *  CRIB in CIPHERTEXT.  Characters of either outside the alphabet of
+     *  CONFIG are ignored.  Initially the crib is tried at every offset
+     *  where it could occur. */
+    Bombe(Machine config, String ciphertext, String crib) {
+        _alphabet = config.alphabet();
+        _cipher = indices(ciphertext);
+        _crib = indices(crib);
+        if (_crib.length == 0) {
+            throw error("empty crib");
+        }
+        if (_crib.length > _cipher.length) {
+            throw error("crib longer than ciphertext");
+        }
+        _orders = KeySearch.rotorOrders(config);
+        if (_orders.isEmpty()) {
+            throw error("no valid rotor orders");
+        }
+        boolean selfEncrypts = false;
+        for (MachineSpec spec : _orders) {
+            selfEncrypts |= !spec.rotor(0).permutation().derangement();
+        }
+        long space = 1;
+        try {
+            for (int k = 1; k < config.numRotors(); k++) {
+                space = Math.multiplyExact(space, _alphabet.size());
+            }
+        } catch (ArithmeticException excp) {
+            throw error("search space too large");
+        }
+        _positionCount = space;
+        _menus = new ArrayList<>();
+        for (int off = 0; off + _crib.length <= _cipher.length; off++) {
+            if (selfEncrypts || fits(off)) {
+                _menus.add(new Menu(off));
+            }
+        }
+    }
+
+    /** Return the indices in my alphabet of the characters of TEXT that
+     *  are in it. */
+    private int[] indices(String text) {
+        int[] result = new int[text.length()];
+        int len = 0;
+        for (int index = 0; index < text.length(); index++) {
+            int c = _alphabet.toInt(text.charAt(index));
+            if (c >= 0) {
+                result[len++] = c;
+            }
+        }
+        return Arrays.copyOf(result, len);
+    }
+
+    /** Return true iff no letter of the crib placed at OFFSET is equal
+     *  to the ciphertext letter under it. */
+    private boolean fits(int offset) {
+        for (int index = 0; index < _crib.length; index++) {
+            if (_crib[index] == _cipher[offset + index]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Try the crib only at OFFSET. */
+    void placeAt(int offset) {
+        if (offset < 0 || offset + _crib.length > _cipher.length) {
+            throw error("bad offset: %d", offset);
+        }
+        _menus.clear();
+        _menus.add(new Menu(offset));
+    }
+
+    /** Return the number of crib offsets being tried. */
+    int placements() {
+        return _menus.size();
+    }
+
+    /** Run the bombe on POOL, returning all stops ordered by rotor order,
+     *  then position, then offset. */
+    List<Stop> run(ForkJoinPool pool) {
+        List<List<Stop>> found = new ArrayList<>();
+        List<OrderTask> tasks = new ArrayList<>();
+        for (MachineSpec spec : _orders) {
+            List<Stop> stops = new ArrayList<>();
+            found.add(stops);
+            tasks.add(new OrderTask(spec, stops));
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+        List<Stop> result = new ArrayList<>();
+        for (List<Stop> stops : found) {
+            result.addAll(stops);
+        }
+        return result;
+    }
+
+    /** Add to STOPS the stops for the rotors of SPEC. */
+    private void search(MachineSpec spec, List<Stop> stops) {
+        int size = _alphabet.size();
+        int[][] scramblers = new int[_crib.length][size];
+        int[] inner = new int[size];
+        int[] start = new int[spec.numRotors()];
+        int[] pos = new int[start.length];
+        int fast = pos.length - 1;
+        Closure closure = new Closure(size);
+        for (long key = 0; key < _positionCount; key++) {
+            System.arraycopy(start, 0, pos, 0, pos.length);
+            for (int step = 0; step < _crib.length; step++) {
+                if (spec.step(pos) || step == 0) {
+                    spec.fuse(pos, inner);
+                }
+                int[] s = scramblers[step];
+                for (int c = 0; c < size; c++) {
+                    s[c] = spec.backward(fast, pos[fast],
+                                         inner[spec.forward(fast, pos[fast],
+                                                            c)]);
+                }
+            }
+            for (Menu menu : _menus) {
+                int[] plugboard = closure.test(menu, scramblers);
+                if (plugboard != null) {
+                    stops.add(new Stop(spec, start.clone(), menu._offset,
+                                       plugboard));
+                }
+            }
+            for (int k = fast; k > 0; k--) {
+                start[k] += 1;
+                if (start[k] < size) {
+                    break;
+                }
+                start[k] = 0;
+            }
+        }
+    }
+
+    /** The edges of the crib placed at one offset. */
+    private class Menu {
+
+        /** The menu for the crib placed at OFFSET in the ciphertext. */
+        Menu(int offset) {
+            int size = _alphabet.size();
+            _offset = offset;
+            _start = new int[size + 1];
+            for (int index = 0; index < _crib.length; index++) {
+                _start[_crib[index] + 1] += 1;
+                _start[_cipher[offset + index] + 1] += 1;
+            }
+            int busiest = 0;
+            for (int c = 0; c < size; c++) {
+                if (_start[c + 1] > _start[busiest + 1]) {
+                    busiest = c;
+                }
+                _start[c + 1] += _start[c];
+            }
+            _test = busiest;
+            _to = new int[2 * _crib.length];
+            _step = new int[2 * _crib.length];
+            int[] fill = Arrays.copyOf(_start, size);
+            for (int index = 0; index < _crib.length; index++) {
+                int a = _crib[index], b = _cipher[offset + index];
+                _to[fill[a]] = b;
+                _step[fill[a]++] = index;
+                _to[fill[b]] = a;
+                _step[fill[b]++] = index;
+            }
+        }
+
+        /** Offset of the crib in the ciphertext. */
+        private final int _offset;
+
+        /** The letter whose plugboard value is guessed. */
+        private final int _test;
+
+        /** The edges at letter C are _to[_start[C] .. _start[C+1]-1]. */
+        private final int[] _start;
+
+        /** The letter at the other end of each edge. */
+        private final int[] _to;
+
+        /** The number of steps (less one) taken by the rotors before each
+         *  edge's letter was enciphered. */
+        private final int[] _step;
+    }
+
+    /** Working storage for closing guesses, owned by one thread. */
+    private static class Closure {
+
+        /** Storage for an alphabet of SIZE letters. */
+        Closure(int size) {
+            _size = size;
+            _words = (size + 63) >>> 6;
+            _live = new long[size * _words];
+            _ruledOut = new long[_words];
+            _value = new int[size];
+            Arrays.fill(_value, -1);
+            _pending = new int[2 * size];
+            _touched = new int[2 * size];
+        }
+
+        /** Return the plugboard implied by the first consistent guess at
+         *  the test letter of MENU under the rotor maps SCRAMBLERS, as a
+         *  table with -1 for unknown letters, or null if every guess
+         *  fails. */
+        int[] test(Menu menu, int[][] scramblers) {
+            Arrays.fill(_ruledOut, 0);
+            for (int x = 0; x < _size; x++) {
+                if ((_ruledOut[x >>> 6] & 1L << x) != 0) {
+                    continue;
+                }
+                boolean consistent = close(menu, scramblers, x);
+                int base = menu._test * _words;
+                for (int w = 0; w < _words; w++) {
+                    _ruledOut[w] |= _live[base + w];
+                }
+                int[] result = consistent ? _value.clone() : null;
+                clear();
+                if (consistent) {
+                    return result;
+                }
+            }
+            return null;
+        }
+
+        /** Close the guess that the plugboard maps the test letter of MENU
+         *  to X, returning false if it gives some letter two values. */
+        private boolean close(Menu menu, int[][] scramblers, int x) {
+            if (!add(menu._test, x)) {
+                return false;
+            }
+            while (_top > 0) {
+                int pair = _pending[--_top];
+                int a = pair / _size, y = pair % _size;
+                if (!add(y, a)) {
+                    return false;
+                }
+                for (int e = menu._start[a]; e < menu._start[a + 1]; e++) {
+                    if (!add(menu._to[e], scramblers[menu._step[e]][y])) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /** Record that the plugboard maps A to Y, returning false if A
+         *  already has another value. */
+        private boolean add(int a, int y) {
+            int word = a * _words + (y >>> 6);
+            long bit = 1L << y;
+            if ((_live[word] & bit) != 0) {
+                return true;
+            }
+            _live[word] |= bit;
+            _pending[_top++] = a * _size + y;
+            _touched[_touchedCount++] = a;
+            if (_value[a] >= 0) {
+                return false;
+            }
+            _value[a] = y;
+            return true;
+        }
+
+        /** Forget the current guess. */
+        private void clear() {
+            for (int index = 0; index < _touchedCount; index++) {
+                int a = _touched[index];
+                Arrays.fill(_live, a * _words, (a + 1) * _words, 0);
+                _value[a] = -1;
+            }
+            _touchedCount = 0;
+            _top = 0;
+        }
+
+        /** Alphabet size. */
+        private final int _size;
+
+        /** Number of longs in the bitset of one letter. */
+        private final int _words;
+
+        /** Bit Y of the bitset of letter A is set if the current guess
+         *  implies that the plugboard maps A to Y. */
+        private final long[] _live;
+
+        /** Values of the test letter known to be wrong. */
+        private final long[] _ruledOut;
+
+        /** The value implied for each letter, or -1. */
+        private final int[] _value;
+
+        /** Pairs (A, Y), as A * _size + Y, whose implications are yet to
+         *  be followed.  Since a letter's second value ends a closure, a
+         *  closure never records more than two pairs per letter. */
+        private final int[] _pending;
+
+        /** Number of entries in _pending. */
+        private int _top;
+
+        /** Letters with bits set in _live, possibly repeated. */
+        private final int[] _touched;
+
+        /** Number of entries in _touched. */
+        private int _touchedCount;
+    }
+
+    /** A rotor order and position at which a guess survived. */
+    class Stop {
+
+        /** A stop for the rotors of SPEC at positions POS with the crib
+         *  at OFFSET, where the surviving guess implies PLUGBOARD. */
+        Stop(MachineSpec spec, int[] pos, int offset, int[] plugboard) {
+            _spec = spec;
+            _pos = pos;
+            _offset = offset;
+            _plugboard = plugboard;
+        }
+
+        /** Return the rotor positions, one character per slot after the
+         *  reflector, when the first crib letter is enciphered. */
+        String positions() {
+            StringBuilder result = new StringBuilder();
+            for (int k = 1; k < _pos.length; k++) {
+                result.append(_alphabet.toChar(_pos[k]));
+            }
+            return result.toString();
+        }
+
+        /** Return the plugboard swaps implied at this stop, in cycle
+         *  notation. */
+        String plugboard() {
+            StringBuilder result = new StringBuilder();
+            for (int a = 0; a < _plugboard.length; a++) {
+                int b = _plugboard[a];
+                if (b > a && _plugboard[b] == a) {
+                    result.append(result.length() == 0 ? "(" : " (")
+                        .append(_alphabet.toChar(a))
+                        .append(_alphabet.toChar(b)).append(')');
+                }
+            }
+            return result.toString();
+        }
+
+        /** Return the offset of the crib in the ciphertext. */
+        int offset() {
+            return _offset;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder line = new StringBuilder();
+            line.append(_offset).append(": *");
+            for (Rotor r : _spec.rotors()) {
+                line.append(' ').append(r.name());
+            }
+            line.append(' ').append(positions());
+            String plugs = plugboard();
+            if (!plugs.isEmpty()) {
+                line.append(' ').append(plugs);
+            }
+            return line.toString();
+        }
+
+        /** My rotors. */
+        private final MachineSpec _spec;
+
+        /** My rotor positions before the crib. */
+        private final int[] _pos;
+
+        /** Offset of the crib. */
+        private final int _offset;
+
+        /** Plugboard values implied here, or -1 where unknown. */
+        private final int[] _plugboard;
+    }
+
+    /** The search for one rotor order. */
+    private class OrderTask extends RecursiveAction {
+
+        /** A task adding to STOPS the stops for the rotors of SPEC. */
+        OrderTask(MachineSpec spec, List<Stop> stops) {
+            _spec = spec;
+            _stops = stops;
+        }
+
+        @Override
+        protected void compute() {
+            search(_spec, _stops);
+        }
+
+        /** The rotor order. */
+        private final MachineSpec _spec;
+
+        /** Where stops are recorded. */
+        private final List<Stop> _stops;
+
+        /** Serialization version. */
+        private static final long serialVersionUID = 1L;
+    }
+
+    /** The alphabet of the machine. */
+    private final Alphabet _alphabet;
+
+    /** The ciphertext, as indices into _alphabet. */
+    private final int[] _cipher;
+
+    /** The crib, as indices into _alphabet. */
+    private final int[] _crib;
+
+    /** Every rotor order tried. */
+    private final List<MachineSpec> _orders;
+
+    /** Number of sets of positions tried for each rotor order. */
+    private final long _positionCount;
+
+    /** The menus for each offset tried. */
+    private final List<Menu> _menus;
+
+}
@@ -0,0 +1,205 @@
+package enigma;
+
+import java.nio.ByteBuffer;
+
+import static enigma.EnigmaException.*;
+
+/** A machine of a byte configuration (see ConfigParser), converting
+ *  blocks of raw bytes in place, with no chars, Strings or lines
+ *  involved.  The plugboard is folded into byte tables for the fast rotor
+ *  at each of its 256 settings, and every rotor to its left into a fused
+ *  byte table that is rebuilt only when one of them moves.  Between those
+ *  moves only the fast rotor turns, so runs of bytes are converted with
+ *  three lookups each and no stepping logic at all.  The fused table is
+ *  itself rebuilt from a table for the rotor next to the fast one and a
+ *  fused table for everything to its left, which rarely changes.
+ *  @author Jonny W.
+ */
+class ByteMachine {
+
+    /** A byte machine starting from the rotors, settings and plugboard of
+     *  M, which must be over the alphabet of a byte configuration.  M is
+     *  not changed. */
+    ByteMachine(Machine m) {
+        if (!m.alphabet().isBytes()) {
+            throw error("not a byte configuration");
+        }
+        _spec = m.spec();
+        int n = _spec.numRotors();
+        _positions = new int[n];
+        for (int k = 1; k < n; k++) {
+            _positions[k] = m.setting(k);
+        }
+        int[] plug = m.plugboard() == null
+            ? Permutation.identity(SIZE) : m.plugboard().forwardTable();
+        int fast = n - 1;
+        _in = new byte[SIZE * SIZE];
+        _out = new byte[SIZE * SIZE];
+        for (int p = 0; p < SIZE; p++) {
+            for (int c = 0; c < SIZE; c++) {
+                _in[p << 8 | c] = (byte) _spec.forward(fast, p, plug[c]);
+                _out[p << 8 | c] = (byte) plug[_spec.backward(fast, p, c)];
+            }
+        }
+        _fastMoves = _spec.rotates(fast) ? 1 : 0;
+        _inner = new byte[SIZE];
+        if (n > 2) {
+            int mid = fast - 1;
+            _midIn = new byte[SIZE * SIZE];
+            _midOut = new byte[SIZE * SIZE];
+            for (int p = 0; p < SIZE; p++) {
+                for (int c = 0; c < SIZE; c++) {
+                    _midIn[p << 8 | c] = (byte) _spec.forward(mid, p, c);
+                    _midOut[p << 8 | c] = (byte) _spec.backward(mid, p, c);
+                }
+            }
+            _left = new int[SIZE];
+            _leftPositions = new int[mid];
+            _spec.fuse(_positions, mid - 1, _left);
+            System.arraycopy(_positions, 0, _leftPositions, 0, mid);
+        } else {
+            _midIn = _midOut = null;
+            _left = _leftPositions = null;
+        }
+        int[] inner = new int[SIZE];
+        _spec.fuse(_positions, inner);
+        for (int c = 0; c < SIZE; c++) {
+            _inner[c] = (byte) inner[c];
+        }
+    }
+
+    /** Return the current setting of rotor #K. */
+    int setting(int k) {
+        return _positions[k];
+    }
+
+    /** Convert BUF[OFF .. OFF+LEN-1] in place, advancing the rotors
+     *  before each byte. */
+    void convert(byte[] buf, int off, int len) {
+        EngineEvents.Conversion event =
+            EngineEvents.startConversion(++_conversions);
+        int[] pos = _positions;
+        int fast = pos.length - 1;
+        byte[] in = _in;
+        byte[] out = _out;
+        byte[] inner = _inner;
+        int end = off + len;
+        int index = off;
+        while (index < end) {
+            int run = Math.min(_spec.quietSteps(pos), end - index);
+            int p = pos[fast];
+            for (int stop = index + run; index < stop; index++) {
+                p += _fastMoves;
+                if (p == SIZE) {
+                    p = 0;
+                }
+                int base = p << 8;
+                buf[index] =
+                    out[base | inner[in[base | buf[index] & 0xff] & 0xff]
+                        & 0xff];
+            }
+            pos[fast] = p;
+            if (index < end) {
+                if (_spec.step(pos)) {
+                    fuse();
+                }
+                int base = pos[fast] << 8;
+                buf[index] =
+                    out[base | inner[in[base | buf[index] & 0xff] & 0xff]
+                        & 0xff];
+                index += 1;
+            }
+        }
+        EngineStats.converted(len, 1, _turnovers);
+        _turnovers = 0;
+        EngineEvents.endConversion(event, len);
+    }
+
+    /** Convert the remaining bytes of BUF in place, leaving its position
+     *  at its limit. */
+    void convert(ByteBuffer buf) {
+        if (buf.hasArray()) {
+            convert(buf.array(), buf.arrayOffset() + buf.position(),
+                    buf.remaining());
+            buf.position(buf.limit());
+            return;
+        }
+        byte[] block = new byte[Math.min(buf.remaining(), BLOCK_SIZE)];
+        while (buf.hasRemaining()) {
+            int len = Math.min(buf.remaining(), block.length);
+            int start = buf.position();
+            buf.get(block, 0, len);
+            convert(block, 0, len);
+            buf.position(start);
+            buf.put(block, 0, len);
+        }
+    }
+
+    /** Rebuild _inner for the current settings, first rebuilding _left
+     *  if any rotor it covers has moved. */
+    private void fuse() {
+        _turnovers += 1;
+        int mid = _positions.length - 2;
+        for (int k = 1; k < mid; k++) {
+            if (_positions[k] != _leftPositions[k]) {
+                _spec.fuse(_positions, mid - 1, _left);
+                System.arraycopy(_positions, 0, _leftPositions, 0, mid);
+                break;
+            }
+        }
+        int q = _positions[mid] << 8;
+        for (int c = 0; c < SIZE; c++) {
+            _inner[c] = _midOut[q | _left[_midIn[q | c] & 0xff]];
+        }
+    }
+
+    /** Number of byte values. */
+    private static final int SIZE = Alphabet.BYTE_VALUES;
+
+    /** Size of the blocks copied out of buffers without arrays. */
+    private static final int BLOCK_SIZE = 1 << 13;
+
+    /** The rotors. */
+    private final MachineSpec _spec;
+
+    /** Current setting of each rotor, indexed by slot. */
+    private final int[] _positions;
+
+    /** _in[P * 256 + C] is C after the plugboard and the fast rotor at
+     *  setting P, going towards the reflector. */
+    private final byte[] _in;
+
+    /** _out[P * 256 + C] is C after the fast rotor at setting P, coming
+     *  back from the reflector, and the plugboard. */
+    private final byte[] _out;
+
+    /** 1 iff the fast rotor has a pawl. */
+    private final int _fastMoves;
+
+    /** The reflector and the rotors between it and the fast rotor, out
+     *  and back, at their current settings. */
+    private final byte[] _inner;
+
+    /** _midIn[Q * 256 + C] is C after the rotor next to the fast rotor at
+     *  setting Q, going towards the reflector; null if there is no such
+     *  rotor. */
+    private final byte[] _midIn;
+
+    /** _midOut[Q * 256 + C] is C after that rotor coming back. */
+    private final byte[] _midOut;
+
+    /** The reflector and the rotors between it and the rotor next to the
+     *  fast rotor, out and back, at the settings _leftPositions. */
+    private final int[] _left;
+
+    /** Settings of the rotors covered by _left when it was built. */
+    private final int[] _leftPositions;
+
+    /** Number of bulk conversions done, for sampling events. */
+    private long _conversions;
+
+    /** Times a rotor other than the fast one has moved since the last
+     *  report to EngineStats. */
+    private long _turnovers;
+
+}
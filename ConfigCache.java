@@ -0,0 +1,201 @@
+package enigma;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/** The compiled binary form of a configuration file.  A cache file holds
+ *  a header identifying the format and the configuration text it was
+ *  compiled from, followed by the alphabet, the slot and pawl counts and
+ *  each rotor with its permutation table already built.  Loading one is a
+ *  single memory-mapped read with no tokenizing or cycle parsing.
+ *
+ *  Layout (big-endian):
+ *  <pre>
+ *    int   MAGIC, int VERSION
+ *    long  length of source text, int CRC-32 of source text
+ *    int   length of body, int CRC-32 of body
+ *    body: alphabet (int size, size chars), int slots, int pawls,
+ *          int rotor count, then per rotor: byte kind ('M', 'N' or 'R'),
+ *          name and notches (int length + chars), size chars of table.
+ *  </pre>
+ *  @author Jonny W.
+ */
+class ConfigCache {
+
+    /** Return the machine stored in the cache file PATH if that file is
+     *  a valid cache compiled from the configuration text SOURCE, and
+     *  otherwise null. */
+    static Machine load(Path path, byte[] source) {
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path,
+                                                    StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE
+                || channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            MappedByteBuffer buf =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION
+                || buf.getLong() != source.length
+                || buf.getInt() != checksum(ByteBuffer.wrap(source))) {
+                return null;
+            }
+            int bodyLength = buf.getInt();
+            int bodyCheck = buf.getInt();
+            if (bodyLength != buf.remaining()
+                || checksum(buf.slice()) != bodyCheck) {
+                return null;
+            }
+            return readBody(buf);
+        } catch (IOException | BufferUnderflowException
+                 | EnigmaException excp) {
+            return null;
+        }
+    }
+
+    /** Write CONFIG, a machine compiled from the configuration text
+     *  SOURCE, to the cache file PATH.  The file is replaced atomically
+     *  where possible, so concurrent readers see either the old cache or
+     *  the new one.  Failure to write is not an error; the cache is
+     *  simply absent next time. */
+    static void store(Path path, byte[] source, Machine config) {
+        try {
+            byte[] body = writeBody(config);
+            ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + body.length);
+            out.putInt(MAGIC).putInt(VERSION);
+            out.putLong(source.length);
+            out.putInt(checksum(ByteBuffer.wrap(source)));
+            out.putInt(body.length).putInt(checksum(ByteBuffer.wrap(body)));
+            out.put(body).flip();
+            Path dir = path.toAbsolutePath().getParent();
+            Path tmp = Files.createTempFile(dir, ".enigma", ".tmp");
+            try {
+                try (FileChannel channel =
+                     FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                    while (out.hasRemaining()) {
+                        channel.write(out);
+                    }
+                }
+                try {
+                    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING,
+                               StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException excp) {
+                    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException | SecurityException excp) {
+            return;
+        }
+    }
+
+    /** Return the serialized alphabet, counts and rotors of CONFIG. */
+    private static byte[] writeBody(Machine config) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Alphabet alpha = config.alphabet();
+        out.writeInt(alpha.size());
+        for (int index = 0; index < alpha.size(); index++) {
+            out.writeChar(alpha.toChar(index));
+        }
+        out.writeInt(config.numRotors());
+        out.writeInt(config.numPawls());
+        out.writeInt(config.allRotors().size());
+        for (Rotor r : config.allRotors()) {
+            out.writeByte(r.rotates() ? 'M' : r.reflecting() ? 'R' : 'N');
+            writeString(out, r.name());
+            writeString(out, r.notches());
+            for (int k : r.permutation().forwardTable()) {
+                out.writeChar(k);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /** Return the machine whose description starts at the current
+     *  position of BUF. */
+    private static Machine readBody(ByteBuffer buf) {
+        Alphabet alpha = new Alphabet(readString(buf));
+        int size = alpha.size();
+        int numRotors = buf.getInt();
+        int pawls = buf.getInt();
+        int count = buf.getInt();
+        List<Rotor> rotors = new ArrayList<>();
+        for (int index = 0; index < count; index++) {
+            byte kind = buf.get();
+            String name = readString(buf);
+            String notches = readString(buf);
+            int[] forward = new int[size];
+            for (int k = 0; k < size; k++) {
+                forward[k] = buf.getChar();
+            }
+            Permutation perm = new Permutation(forward, alpha);
+            if (kind == 'M') {
+                rotors.add(new MovingRotor(name, perm, notches));
+            } else if (kind == 'N') {
+                rotors.add(new FixedRotor(name, perm));
+            } else {
+                rotors.add(new Reflector(name, perm));
+            }
+        }
+        if (buf.hasRemaining()) {
+            return null;
+        }
+        return new Machine(alpha, numRotors, pawls, rotors);
+    }
+
+    /** Write S to OUT as a length followed by its characters. */
+    private static void writeString(DataOutputStream out, String s)
+        throws IOException {
+        out.writeInt(s.length());
+        out.writeChars(s);
+    }
+
+    /** Return the string written by writeString at the current position
+     *  of BUF. */
+    private static String readString(ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len < 0 || len > buf.remaining() / 2) {
+            throw new BufferUnderflowException();
+        }
+        char[] chars = new char[len];
+        buf.asCharBuffer().get(chars);
+        buf.position(buf.position() + 2 * len);
+        return new String(chars);
+    }
+
+    /** Return the CRC-32 of the remaining bytes of BUF. */
+    private static int checksum(ByteBuffer buf) {
+        CRC32 crc = new CRC32();
+        crc.update(buf);
+        return (int) crc.getValue();
+    }
+
+    /** Identifies a cache file: "ENGC". */
+    private static final int MAGIC = 0x454E4743;
+
+    /** Version of the layout above; bump when it changes. */
+    static final int VERSION = 1;
+
+    /** Bytes before the body. */
+    private static final int HEADER_SIZE = 28;
+
+}
@@ -0,0 +1,152 @@
+package enigma;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static enigma.EnigmaException.*;
+
+/** A single-pass reader for the text of a configuration file.  The first
+ *  line is the alphabet; after it come the number of rotor slots, the
+ *  number of pawls and the rotor descriptions, all separated by
+ *  whitespace.  Tokens are found by scanning characters directly, and the
+ *  cycles of each rotor are entered straight into its permutation table
+ *  without building any intermediate strings.
+ *
+ *  If the first line is BYTES_LINE, the configuration is a byte
+ *  configuration, whose alphabet is the 256 byte values (see
+ *  Alphabet.bytes).  Its notches and cycles name bytes by two hexadecimal
+ *  digits each, as in "Mff" (a notch at 0xff) or "(00ff10) (4161)".
+ *  @author Jonny W.
+ */
+class ConfigParser {
+
+    /** A parser for the configuration TEXT. */
+    ConfigParser(String text) {
+        _text = text;
+    }
+
+    /** Return a machine described by my text, with its rotor catalog
+     *  filled in but no rotors inserted. */
+    Machine parse() {
+        int end = 0;
+        while (end < _text.length() && _text.charAt(end) != '\n'
+               && _text.charAt(end) != '\r') {
+            end += 1;
+        }
+        if (_text.isEmpty()) {
+            throw error("configuration file truncated");
+        }
+        _bytes = _text.substring(0, end).equals(BYTES_LINE);
+        _alphabet = _bytes ? Alphabet.bytes()
+            : new Alphabet(_text.substring(0, end));
+        _pos = end;
+        int numRotors = nextInt();
+        int pawls = nextInt();
+        List<Rotor> rotors = new ArrayList<>();
+        while (nextToken()) {
+            rotors.add(rotor());
+        }
+        return new Machine(_alphabet, numRotors, pawls, rotors);
+    }
+
+    /** Return the rotor whose description starts at the current token. */
+    private Rotor rotor() {
+        String name = _text.substring(_start, _pos);
+        if (!nextToken()) {
+            throw error("bad rotor description");
+        }
+        char kind = _text.charAt(_start);
+        String notches = _bytes ? byteNotches()
+            : _text.substring(_start + 1, _pos);
+        int[] forward = Permutation.identity(_alphabet.size());
+        int mark = _pos;
+        while (nextToken() && _text.charAt(_start) == '('
+               && _text.charAt(_pos - 1) == ')' && _pos - _start >= 2) {
+            if (_bytes) {
+                Permutation.addByteCycles(_text, _start, _pos, forward);
+            } else {
+                Permutation.addCycles(_text, _start, _pos, _alphabet,
+                                      forward);
+            }
+            mark = _pos;
+        }
+        _pos = mark;
+        Permutation perm = new Permutation(forward, _alphabet);
+        if (kind == 'M') {
+            return new MovingRotor(name, perm, notches);
+        } else if (kind == 'N') {
+            return new FixedRotor(name, perm);
+        } else {
+            return new Reflector(name, perm);
+        }
+    }
+
+    /** Return the notches of the current token, after its kind letter,
+     *  in a byte configuration, as the characters of Alphabet.bytes. */
+    private String byteNotches() {
+        StringBuilder result = new StringBuilder();
+        for (int index = _start + 1; index < _pos; index += 2) {
+            int b = index + 1 < _pos ? Alphabet.byteAt(_text, index) : -1;
+            if (b < 0) {
+                throw error("bad rotor description");
+            }
+            result.append((char) b);
+        }
+        return result.toString();
+    }
+
+    /** Return the integer in the next token. */
+    private int nextInt() {
+        if (!nextToken()) {
+            throw error("configuration file truncated");
+        }
+        int result = 0;
+        boolean negative = _text.charAt(_start) == '-';
+        int index = negative ? _start + 1 : _start;
+        if (index == _pos) {
+            throw error("configuration file truncated");
+        }
+        for (; index < _pos; index++) {
+            int digit = Character.digit(_text.charAt(index), 10);
+            if (digit < 0 || result > (Integer.MAX_VALUE - digit) / 10) {
+                throw error("configuration file truncated");
+            }
+            result = result * 10 + digit;
+        }
+        return negative ? -result : result;
+    }
+
+    /** Move to the next whitespace-delimited token, setting _start and
+     *  _pos to its bounds.  Returns false if there is none. */
+    private boolean nextToken() {
+        while (_pos < _text.length()
+               && Character.isWhitespace(_text.charAt(_pos))) {
+            _pos += 1;
+        }
+        _start = _pos;
+        while (_pos < _text.length()
+               && !Character.isWhitespace(_text.charAt(_pos))) {
+            _pos += 1;
+        }
+        return _start < _pos;
+    }
+
+    /** First line of a byte configuration. */
+    static final String BYTES_LINE = "(bytes)";
+
+    /** The configuration being parsed. */
+    private final String _text;
+
+    /** The alphabet from the first line of _text. */
+    private Alphabet _alphabet;
+
+    /** True iff _text is a byte configuration. */
+    private boolean _bytes;
+
+    /** Start of the current token in _text. */
+    private int _start;
+
+    /** End of the current token; scanning resumes here. */
+    private int _pos;
+
+}
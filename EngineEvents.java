@@ -0,0 +1,160 @@
+package enigma;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** Flight Recorder events for the cipher engine.  They cost nothing
+ *  unless a recording enables them; until the Flight Recorder has been
+ *  started, not even the event classes are loaded, since loading the
+ *  first of them costs a noticeable fraction of a second of startup.
+ *  Conversions are sampled: only one
+ *  bulk conversion in CONVERSION_SAMPLE of each machine is timed, and its
+ *  event records that weight, so that recording them costs well under 1%
+ *  of throughput even for short lines.  Settings lines are never recorded,
+ *  since they are key material.
+ *  @author Jonny W.
+ */
+final class EngineEvents {
+
+    /** Not instantiable. */
+    private EngineEvents() {
+    }
+
+    /** The loading of a configuration. */
+    @Name("enigma.ConfigLoad")
+    @Label("Configuration Load")
+    @Category("Enigma")
+    static class ConfigLoad extends Event {
+        /** Whether the configuration came from its compiled cache. */
+        @Label("From Cache")
+        boolean cached;
+
+        /** Number of rotors in the catalog. */
+        @Label("Rotors")
+        int rotors;
+    }
+
+    /** The application of a settings line to a machine. */
+    @Name("enigma.SettingsChange")
+    @Label("Settings Change")
+    @Category("Enigma")
+    static class SettingsChange extends Event {
+        /** Whether the setup came from the cache of recent setups. */
+        @Label("From Cache")
+        boolean cached;
+
+        /** Number of rotor slots. */
+        @Label("Slots")
+        int slots;
+    }
+
+    /** A sampled bulk conversion by a machine. */
+    @Name("enigma.Conversion")
+    @Label("Conversion")
+    @Category("Enigma")
+    @Description("One in every sampleWeight bulk conversions")
+    static class Conversion extends Event {
+        /** Characters converted. */
+        @Label("Characters")
+        int characters;
+
+        /** Number of conversions this one stands for. */
+        @Label("Sample Weight")
+        int sampleWeight;
+    }
+
+    /** Return true iff the Flight Recorder has been started, so that
+     *  events might be recorded. */
+    static boolean recording() {
+        return FlightRecorder.isInitialized();
+    }
+
+    /** Return a started ConfigLoad event, or null if not recording. */
+    static ConfigLoad startConfigLoad() {
+        if (!recording()) {
+            return null;
+        }
+        ConfigLoad event = new ConfigLoad();
+        event.begin();
+        return event;
+    }
+
+    /** Finish EVENT, returned by startConfigLoad, for a configuration of
+     *  ROTORS rotors, loaded from its cache iff CACHED.  EVENT may be
+     *  null. */
+    static void endConfigLoad(ConfigLoad event, boolean cached, int rotors) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.cached = cached;
+            event.rotors = rotors;
+            event.commit();
+        }
+    }
+
+    /** Return a started SettingsChange event, or null if not
+     *  recording. */
+    static SettingsChange startSettingsChange() {
+        if (!recording()) {
+            return null;
+        }
+        SettingsChange event = new SettingsChange();
+        event.begin();
+        return event;
+    }
+
+    /** Finish EVENT, returned by startSettingsChange, for a machine with
+     *  SLOTS slots, set up from the cache of recent setups iff CACHED.
+     *  EVENT may be null. */
+    static void endSettingsChange(SettingsChange event, boolean cached,
+                                  int slots) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.cached = cached;
+            event.slots = slots;
+            event.commit();
+        }
+    }
+
+    /** Return a started Conversion event if the bulk conversion numbered
+     *  BATCH by its machine is to be sampled and the event is enabled,
+     *  and otherwise null. */
+    static Conversion startConversion(long batch) {
+        if ((batch & (CONVERSION_SAMPLE - 1)) != 0 || !recording()) {
+            return null;
+        }
+        Conversion event = new Conversion();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    /** Finish EVENT, returned by startConversion, for a conversion of
+     *  CHARACTERS characters.  EVENT may be null. */
+    static void endConversion(Conversion event, int characters) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.characters = characters;
+            event.sampleWeight = CONVERSION_SAMPLE;
+            event.commit();
+        }
+    }
+
+    /** One bulk conversion in this many is sampled; a power of 2. */
+    static final int CONVERSION_SAMPLE = 64;
+
+}
@@ -0,0 +1,173 @@
+package enigma;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import static enigma.EnigmaException.*;
+
+/** Counters and timers for the cipher engine, shared by every machine in
+ *  the JVM and published as the MBean NAME by register.  Counters are
+ *  LongAdders, so threads recording at once do not contend, and the hot
+ *  paths record in bulk: a Machine counts its characters in plain fields
+ *  and adds them here once per conversion or every few thousand
+ *  characters.
+ *  @author Jonny W.
+ */
+final class EngineStats implements EngineStatsMBean {
+
+    /** Not instantiable except as INSTANCE. */
+    private EngineStats() {
+    }
+
+    /** Publish my counters through the platform MBean server, if they are
+     *  not published already. */
+    static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                .registerMBean(INSTANCE, new ObjectName(NAME));
+        } catch (InstanceAlreadyExistsException excp) {
+            /* Registered earlier. */
+        } catch (JMException excp) {
+            throw error("could not register %s: %s", NAME,
+                        excp.getMessage());
+        }
+    }
+
+    /** Record the conversion of CHARACTERS characters, in CONVERSIONS bulk
+     *  conversions, during which the rotors turned over TURNOVERS
+     *  times. */
+    static void converted(long characters, long conversions,
+                          long turnovers) {
+        CHARACTERS.add(characters);
+        CONVERSIONS.add(conversions);
+        TURNOVERS.add(turnovers);
+    }
+
+    /** Record the writing of BYTES bytes of output. */
+    static void wrote(long bytes) {
+        OUTPUT_BYTES.add(bytes);
+    }
+
+    /** Record a configuration load that took NANOS nanoseconds, from a
+     *  cache iff CACHED. */
+    static void configLoaded(long nanos, boolean cached) {
+        CONFIG_LOADS.increment();
+        CONFIG_LOAD_NANOS.add(nanos);
+        if (cached) {
+            CONFIG_CACHE_HITS.increment();
+        }
+    }
+
+    /** Record a settings line applied in NANOS nanoseconds, from the cache
+     *  of recent setups iff CACHED. */
+    static void setUp(long nanos, boolean cached) {
+        SETUPS.increment();
+        if (cached) {
+            SETUP_CACHE_HITS.increment();
+        }
+        SETUP_LATENCY.record(nanos);
+    }
+
+    @Override
+    public long getCharacters() {
+        return CHARACTERS.sum();
+    }
+
+    @Override
+    public long getTurnovers() {
+        return TURNOVERS.sum();
+    }
+
+    @Override
+    public long getConversions() {
+        return CONVERSIONS.sum();
+    }
+
+    @Override
+    public long getOutputBytes() {
+        return OUTPUT_BYTES.sum();
+    }
+
+    @Override
+    public long getConfigLoads() {
+        return CONFIG_LOADS.sum();
+    }
+
+    @Override
+    public long getConfigCacheHits() {
+        return CONFIG_CACHE_HITS.sum();
+    }
+
+    @Override
+    public double getConfigLoadMillis() {
+        long loads = CONFIG_LOADS.sum();
+        return loads == 0 ? 0 : CONFIG_LOAD_NANOS.sum() / 1e6 / loads;
+    }
+
+    @Override
+    public long getSetups() {
+        return SETUPS.sum();
+    }
+
+    @Override
+    public long getSetupCacheHits() {
+        return SETUP_CACHE_HITS.sum();
+    }
+
+    @Override
+    public double getSetupP50Micros() {
+        return SETUP_LATENCY.quantile(0.5) / 1e3;
+    }
+
+    @Override
+    public double getSetupP99Micros() {
+        return SETUP_LATENCY.quantile(0.99) / 1e3;
+    }
+
+    @Override
+    public double getSetupMaxMicros() {
+        return SETUP_LATENCY.quantile(1) / 1e3;
+    }
+
+    /** The name under which I am registered. */
+    static final String NAME = "enigma:type=EngineStats";
+
+    /** The published instance. */
+    private static final EngineStats INSTANCE = new EngineStats();
+
+    /** Characters converted. */
+    private static final LongAdder CHARACTERS = new LongAdder();
+
+    /** Bulk conversions. */
+    private static final LongAdder CONVERSIONS = new LongAdder();
+
+    /** Steps moving a rotor other than the fast rotor. */
+    private static final LongAdder TURNOVERS = new LongAdder();
+
+    /** Bytes of output written. */
+    private static final LongAdder OUTPUT_BYTES = new LongAdder();
+
+    /** Configurations loaded. */
+    private static final LongAdder CONFIG_LOADS = new LongAdder();
+
+    /** Configurations loaded from a cache. */
+    private static final LongAdder CONFIG_CACHE_HITS = new LongAdder();
+
+    /** Total time spent loading configurations. */
+    private static final LongAdder CONFIG_LOAD_NANOS = new LongAdder();
+
+    /** Settings lines applied. */
+    private static final LongAdder SETUPS = new LongAdder();
+
+    /** Settings lines applied from the cache of recent setups. */
+    private static final LongAdder SETUP_CACHE_HITS = new LongAdder();
+
+    /** Times taken to apply settings lines. */
+    private static final LatencyHistogram SETUP_LATENCY =
+        new LatencyHistogram();
+
+}
@@ -0,0 +1,52 @@
+package enigma;
+
+/** The management interface of EngineStats, as seen through JMX.  Counts
+ *  are totals since the JVM started, so that a dashboard can derive
+ *  rates from successive readings; times are in the units named.
+ *  @author Jonny W.
+ */
+public interface EngineStatsMBean {
+
+    /** Return the number of characters converted by machines. */
+    long getCharacters();
+
+    /** Return the number of rotor steps that moved a rotor other than
+     *  the fast one (notch turnovers).  Every character is one step. */
+    long getTurnovers();
+
+    /** Return the number of bulk conversions (lines, blocks or
+     *  messages). */
+    long getConversions();
+
+    /** Return the number of bytes of converted output written. */
+    long getOutputBytes();
+
+    /** Return the number of configurations loaded. */
+    long getConfigLoads();
+
+    /** Return the number of configurations loaded from a cache. */
+    long getConfigCacheHits();
+
+    /** Return the mean time to load a configuration, in milliseconds. */
+    double getConfigLoadMillis();
+
+    /** Return the number of settings lines applied. */
+    long getSetups();
+
+    /** Return the number of settings lines applied from the cache of
+     *  recent setups. */
+    long getSetupCacheHits();
+
+    /** Return the median time to apply a settings line, in
+     *  microseconds. */
+    double getSetupP50Micros();
+
+    /** Return the 99th percentile of the time to apply a settings line,
+     *  in microseconds. */
+    double getSetupP99Micros();
+
+    /** Return the longest time taken to apply a settings line, in
+     *  microseconds. */
+    double getSetupMaxMicros();
+
+}
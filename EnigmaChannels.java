@@ -0,0 +1,148 @@
+package enigma;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+
+/** Byte channels converting the data that passes through them with a
+ *  machine, which advances as it goes.  Bytes are taken as the characters
+ *  0 to 255 (see StreamConverter).  A reading channel converts in place
+ *  in the caller's buffer; a writing channel copies a block at a time
+ *  into a fixed buffer, so that the caller's buffer is not changed.
+ *  Either way no memory is used beyond a fixed block, however long the
+ *  stream.
+ *  @author Jonny W.
+ */
+class EnigmaChannels {
+
+    /** Not instantiable. */
+    private EnigmaChannels() {
+    }
+
+    /** Return a channel reading the bytes of SOURCE converted with M,
+     *  treating bytes not in its alphabet according to POLICY. */
+    static ReadableByteChannel reading(ReadableByteChannel source,
+                                       Machine m,
+                                       StreamConverter.Policy policy) {
+        return new Reading(source, StreamConverter.forBytes(m, policy));
+    }
+
+    /** Return a channel writing to TARGET the conversion with M of the
+     *  bytes written to it, treating bytes not in its alphabet according
+     *  to POLICY.  TARGET should be in blocking mode: each write returns
+     *  only when all of its converted bytes have been written. */
+    static WritableByteChannel writing(WritableByteChannel target,
+                                       Machine m,
+                                       StreamConverter.Policy policy) {
+        return new Writing(target, StreamConverter.forBytes(m, policy));
+    }
+
+    /** A channel returned by reading. */
+    private static class Reading implements ReadableByteChannel {
+
+        /** A channel reading SOURCE converted by CONVERTER. */
+        Reading(ReadableByteChannel source, StreamConverter converter) {
+            _source = source;
+            _converter = converter;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int start = dst.position();
+            while (true) {
+                int n = _source.read(dst);
+                if (n < 0 && dst.position() == start) {
+                    return -1;
+                }
+                try {
+                    _converter.convert(dst, start);
+                } catch (CharacterCodingException excp) {
+                    dst.position(start);
+                    throw excp;
+                }
+                int kept = dst.position() - start;
+                if (kept > 0 || n <= 0) {
+                    return kept;
+                }
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return _source.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            _source.close();
+        }
+
+        /** The channel read. */
+        private final ReadableByteChannel _source;
+
+        /** Converts what is read. */
+        private final StreamConverter _converter;
+    }
+
+    /** A channel returned by writing. */
+    private static class Writing implements WritableByteChannel {
+
+        /** A channel writing to TARGET through CONVERTER. */
+        Writing(WritableByteChannel target, StreamConverter converter) {
+            _target = target;
+            _converter = converter;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (!_target.isOpen()) {
+                throw new ClosedChannelException();
+            }
+            int result = src.remaining();
+            while (src.hasRemaining()) {
+                _block.clear();
+                int len = Math.min(src.remaining(), _block.remaining());
+                int limit = src.limit();
+                src.limit(src.position() + len);
+                _block.put(src);
+                src.limit(limit);
+                try {
+                    _converter.convert(_block, 0);
+                } catch (CharacterCodingException excp) {
+                    src.position(src.position() - len);
+                    throw excp;
+                }
+                _block.flip();
+                while (_block.hasRemaining()) {
+                    _target.write(_block);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return _target.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            _target.close();
+        }
+
+        /** The channel written. */
+        private final WritableByteChannel _target;
+
+        /** Converts what is written. */
+        private final StreamConverter _converter;
+
+        /** The block being converted. */
+        private final ByteBuffer _block =
+            ByteBuffer.allocate(StreamConverter.BLOCK_SIZE);
+    }
+
+}
@@ -0,0 +1,86 @@
+package enigma;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/** An input stream delivering the bytes of another stream converted by a
+ *  machine, which advances as they are read.  Bytes are taken as the
+ *  characters 0 to 255 (see StreamConverter).  Conversion is done in
+ *  place in the reader's array, so no memory is used beyond a fixed
+ *  block, however long the stream.
+ *  @author Jonny W.
+ */
+class EnigmaInputStream extends FilterInputStream {
+
+    /** A stream converting the bytes of IN with M, treating bytes that are
+     *  not in its alphabet according to POLICY. */
+    EnigmaInputStream(InputStream in, Machine m,
+                      StreamConverter.Policy policy) {
+        super(in);
+        _converter = StreamConverter.forBytes(m, policy);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int n = read(_single, 0, 1);
+        return n < 0 ? -1 : _single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (true) {
+            int n = in.read(b, off, len);
+            if (n < 0) {
+                return -1;
+            }
+            n = _converter.convert(b, off, n);
+            if (n > 0) {
+                return n;
+            }
+        }
+    }
+
+    /** Skip up to N converted bytes, returning the number skipped.  The
+     *  skipped bytes still pass through the machine. */
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buf = new byte[(int) Math.min(Math.max(n, 0), SKIP_SIZE)];
+        long skipped = 0;
+        while (skipped < n) {
+            int len = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+            if (len < 0) {
+                break;
+            }
+            skipped += len;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /** Largest buffer used by skip. */
+    private static final int SKIP_SIZE = 1 << 12;
+
+    /** Converts what is read. */
+    private final StreamConverter _converter;
+
+    /** Buffer for read(). */
+    private final byte[] _single = new byte[1];
+
+}
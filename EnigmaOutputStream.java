@@ -0,0 +1,53 @@
+package enigma;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** An output stream converting the bytes written to it with a machine,
+ *  which advances as they are written, and passing the result to another
+ *  stream.  Bytes are taken as the characters 0 to 255 (see
+ *  StreamConverter).  The writer's array is copied a block at a time into
+ *  a fixed buffer and converted there, so no memory is used beyond that
+ *  block, however long the stream.
+ *  @author Jonny W.
+ */
+class EnigmaOutputStream extends FilterOutputStream {
+
+    /** A stream writing the conversion with M of the bytes written to it
+     *  to OUT, treating bytes that are not in its alphabet according to
+     *  POLICY. */
+    EnigmaOutputStream(OutputStream out, Machine m,
+                       StreamConverter.Policy policy) {
+        super(out);
+        _converter = StreamConverter.forBytes(m, policy);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        _block[0] = (byte) b;
+        if (_converter.convert(_block, 0, 1) > 0) {
+            out.write(_block[0]);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        for (int start = off; start < off + len; start += _block.length) {
+            int n = Math.min(_block.length, off + len - start);
+            System.arraycopy(b, start, _block, 0, n);
+            n = _converter.convert(_block, 0, n);
+            out.write(_block, 0, n);
+        }
+    }
+
+    /** Converts what is written. */
+    private final StreamConverter _converter;
+
+    /** The block being converted. */
+    private final byte[] _block = new byte[StreamConverter.BLOCK_SIZE];
+
+}
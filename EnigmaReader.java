@@ -0,0 +1,88 @@
+package enigma;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/** A reader delivering the characters of another reader converted by a
+ *  machine, which advances as they are read.  Conversion is done in place
+ *  in the caller's array, so no memory is used beyond a fixed block,
+ *  however long the stream.
+ *  @author Jonny W.
+ */
+class EnigmaReader extends FilterReader {
+
+    /** A reader converting the characters of IN with M, treating
+     *  characters that are not in its alphabet according to POLICY. */
+    EnigmaReader(Reader in, Machine m, StreamConverter.Policy policy) {
+        super(in);
+        _converter = new StreamConverter(m, policy);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int n = read(_single, 0, 1);
+        return n < 0 ? -1 : _single[0];
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (true) {
+            int n = in.read(cbuf, off, len);
+            if (n < 0) {
+                return -1;
+            }
+            n = _converter.convert(cbuf, off, n);
+            if (n > 0) {
+                return n;
+            }
+        }
+    }
+
+    /** Skip up to N converted characters, returning the number skipped.
+     *  The skipped characters still pass through the machine. */
+    @Override
+    public long skip(long n) throws IOException {
+        if (n < 0) {
+            throw new IllegalArgumentException("skip value is negative");
+        }
+        char[] buf = new char[(int) Math.min(n, SKIP_SIZE)];
+        long skipped = 0;
+        while (skipped < n) {
+            int len = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+            if (len < 0) {
+                break;
+            }
+            skipped += len;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readAheadLimit) throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /** Largest buffer used by skip. */
+    private static final int SKIP_SIZE = 1 << 12;
+
+    /** Converts what is read. */
+    private final StreamConverter _converter;
+
+    /** Buffer for read(). */
+    private final char[] _single = new char[1];
+
+}
@@ -0,0 +1,64 @@
+package enigma;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/** A writer converting the characters written to it with a machine,
+ *  which advances as they are written, and passing the result to another
+ *  writer.  Characters are copied a block at a time into a fixed buffer
+ *  and converted there, so no memory is used beyond that block, however
+ *  long the stream.
+ *  @author Jonny W.
+ */
+class EnigmaWriter extends FilterWriter {
+
+    /** A writer writing the conversion with M of the characters written
+     *  to it to OUT, treating characters that are not in its alphabet
+     *  according to POLICY. */
+    EnigmaWriter(Writer out, Machine m, StreamConverter.Policy policy) {
+        super(out);
+        _converter = new StreamConverter(m, policy);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        _block[0] = (char) c;
+        if (_converter.convert(_block, 0, 1) > 0) {
+            out.write(_block[0]);
+        }
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > cbuf.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        for (int start = off; start < off + len; start += _block.length) {
+            int n = Math.min(_block.length, off + len - start);
+            System.arraycopy(cbuf, start, _block, 0, n);
+            n = _converter.convert(_block, 0, n);
+            out.write(_block, 0, n);
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > str.length()) {
+            throw new IndexOutOfBoundsException();
+        }
+        for (int start = off; start < off + len; start += _block.length) {
+            int n = Math.min(_block.length, off + len - start);
+            str.getChars(start, start + n, _block, 0);
+            n = _converter.convert(_block, 0, n);
+            out.write(_block, 0, n);
+        }
+    }
+
+    /** Converts what is written. */
+    private final StreamConverter _converter;
+
+    /** The block being converted. */
+    private final char[] _block = new char[StreamConverter.BLOCK_SIZE];
+
+}
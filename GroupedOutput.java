@@ -0,0 +1,199 @@
+package enigma;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import static enigma.EnigmaException.*;
+
+/** Buffered output of converted messages to a channel.  Message
+ *  characters are written in groups (normally of five) separated by
+ *  blanks, one message line per output line.  Text is encoded into a
+ *  reusable direct buffer that is written out only when full, so memory
+ *  use does not depend on the length of a line.  Message characters
+ *  given as indices into the alphabet are copied from a table of their
+ *  encodings, with no per-character encoding or allocation.
+ *  @author Jonny W.
+ */
+class GroupedOutput {
+
+    /** Output to CHANNEL of messages in the characters of ALPHABET,
+     *  encoding characters with CHARSET, in groups of GROUP
+     *  characters. */
+    GroupedOutput(WritableByteChannel channel, Charset charset,
+                  Alphabet alphabet, int group) {
+        if (group < 1) {
+            throw error("group width must be positive");
+        }
+        _channel = channel;
+        _encoder = newEncoder(charset);
+        _chars = CharBuffer.allocate(CHAR_BUFFER_SIZE);
+        _bytes = ByteBuffer.allocateDirect(BYTE_BUFFER_SIZE);
+        _group = group;
+        CharsetEncoder encoder = newEncoder(charset);
+        _symbols = new byte[alphabet.size()][];
+        for (int index = 0; index < _symbols.length; index++) {
+            _symbols[index] = encode(encoder, alphabet.toChar(index));
+        }
+        _blank = encode(encoder, ' ');
+    }
+
+    /** Return an encoder for CHARSET that replaces what it cannot
+     *  encode. */
+    private static CharsetEncoder newEncoder(Charset charset) {
+        return charset.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /** Return the bytes that ENCODER produces for C. */
+    private static byte[] encode(CharsetEncoder encoder, char c) {
+        try {
+            ByteBuffer buf = encoder.encode(CharBuffer.wrap(new char[] { c }));
+            byte[] result = new byte[buf.remaining()];
+            buf.get(result);
+            return result;
+        } catch (CharacterCodingException excp) {
+            throw error("cannot encode %c", c);
+        }
+    }
+
+    /** Append C as the next character of the current message line. */
+    void append(char c) {
+        if (_column == _group) {
+            put(' ');
+            _column = 0;
+        }
+        put(c);
+        _column += 1;
+    }
+
+    /** Append the characters of my alphabet whose indices are
+     *  INDICES[OFF .. OFF+LEN-1] to the current message line. */
+    void append(int[] indices, int off, int len) {
+        if (_chars.position() > 0) {
+            encode(false);
+        }
+        for (int index = off; index < off + len; index++) {
+            if (_column == _group) {
+                putBytes(_blank);
+                _column = 0;
+            }
+            putBytes(_symbols[indices[index]]);
+            _column += 1;
+        }
+    }
+
+    /** Terminate the current message line. */
+    void endLine() {
+        write(LINE_SEPARATOR);
+    }
+
+    /** Write the text S as is, terminating the current message line. */
+    void write(CharSequence s) {
+        for (int index = 0; index < s.length(); index++) {
+            put(s.charAt(index));
+        }
+        _column = 0;
+    }
+
+    /** Write out everything buffered so far. */
+    void flush() {
+        encode(true);
+        drain();
+    }
+
+    /** Add C to the character buffer. */
+    private void put(char c) {
+        if (!_chars.hasRemaining()) {
+            encode(false);
+        }
+        _chars.put(c);
+    }
+
+    /** Add the encoded character BYTES to the byte buffer. */
+    private void putBytes(byte[] bytes) {
+        if (_bytes.remaining() < bytes.length) {
+            drain();
+        }
+        if (bytes.length == 1) {
+            _bytes.put(bytes[0]);
+        } else {
+            _bytes.put(bytes);
+        }
+    }
+
+    /** Encode the buffered characters into _bytes, writing _bytes out
+     *  whenever it fills.  A trailing unpaired surrogate is held back
+     *  for the next call, or dropped if ALL. */
+    private void encode(boolean all) {
+        _chars.flip();
+        while (true) {
+            CoderResult result = _encoder.encode(_chars, _bytes, false);
+            if (result.isOverflow()) {
+                drain();
+            } else {
+                break;
+            }
+        }
+        if (all) {
+            _chars.clear();
+        } else {
+            _chars.compact();
+        }
+    }
+
+    /** Write the contents of _bytes to the channel. */
+    private void drain() {
+        _bytes.flip();
+        EngineStats.wrote(_bytes.remaining());
+        try {
+            while (_bytes.hasRemaining()) {
+                _channel.write(_bytes);
+            }
+        } catch (IOException excp) {
+            throw error("could not write output: %s", excp.getMessage());
+        }
+        _bytes.clear();
+    }
+
+    /** Size of the character staging buffer. */
+    private static final int CHAR_BUFFER_SIZE = 1 << 13;
+
+    /** Size of the encoded output buffer. */
+    private static final int BYTE_BUFFER_SIZE = 1 << 20;
+
+    /** Terminates each output line. */
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    /** Destination of the output. */
+    private final WritableByteChannel _channel;
+
+    /** Converts characters to bytes. */
+    private final CharsetEncoder _encoder;
+
+    /** Characters not yet encoded. */
+    private final CharBuffer _chars;
+
+    /** Encoded bytes not yet written. */
+    private final ByteBuffer _bytes;
+
+    /** Number of characters in each group of a message line. */
+    private final int _group;
+
+    /** _symbols[K] is the encoding of character #K of the alphabet. */
+    private final byte[][] _symbols;
+
+    /** The encoding of the blank between groups. */
+    private final byte[] _blank;
+
+    /** Number of message characters written in the current group. */
+    private int _column;
+
+}
@@ -0,0 +1,406 @@
+package enigma;
+
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import static enigma.EnigmaException.*;
+
+/** A ciphertext-only search for the rotors and positions of a machine.
+ *  Every valid order of rotors from a configuration's catalog is tried
+ *  at every initial position, and each trial decryption is scored by its
+ *  index of coincidence: the chance that two letters drawn from it are
+ *  equal, which is higher for language than for random text.  The
+ *  candidates are divided among the threads of a fork/join pool, and the
+ *  best are kept in a lock-free table.  Run as
+ *
+ *      java enigma.KeySearch CONFIG CIPHERTEXT [K]
+ *
+ *  to print the K (default 10) best settings lines for the ciphertext in
+ *  file CIPHERTEXT under the configuration in file CONFIG, followed by
+ *  the search rate on the standard error.
+ *  @author Jonny W.
+ */
+class KeySearch {
+
+    /** Print the best settings for the files named in ARGS (see above). */
+    public static void main(String... args) {
+        try {
+            if (args.length < 2 || args.length > 3) {
+                throw error("Usage: java enigma.KeySearch CONFIG CIPHERTEXT "
+                            + "[K]");
+            }
+            Machine config =
+                new ConfigParser(new String(readFile(args[0]))).parse();
+            int keep;
+            try {
+                keep = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+            } catch (NumberFormatException excp) {
+                throw error("bad result count: %s", args[2]);
+            }
+            KeySearch search =
+                new KeySearch(config, "", new String(readFile(args[1])),
+                              keep);
+            for (Candidate c : search.search(ForkJoinPool.commonPool())) {
+                System.out.printf("%s  %.5f%n", c.settings(),
+                                  c.indexOfCoincidence());
+            }
+            System.err.printf("%d keys in %.3f s: %.0f keys/s%n",
+                              search.keysTested(),
+                              search.elapsedNanos() * 1e-9,
+                              search.keysPerSecond());
+            return;
+        } catch (EnigmaException excp) {
+            System.err.printf("Error: %s%n", excp.getMessage());
+        }
+        System.exit(1);
+    }
+
+    /** Return the contents of the file named NAME. */
+    private static byte[] readFile(String name) {
+        try {
+            return Files.readAllBytes(Paths.get(name));
+        } catch (IOException | InvalidPathException excp) {
+            throw error("could not open %s", name);
+        }
+    }
+
+    /** A search over the rotors in the catalog of CONFIG, with plugboard
+     *  PLUGBOARD (in cycle notation), for the KEEP best decryptions of
+     *  CIPHERTEXT.  Characters of CIPHERTEXT outside the alphabet of
+     *  CONFIG are ignored. */
+    KeySearch(Machine config, String plugboard, String ciphertext,
+              int keep) {
+        if (keep < 1) {
+            throw error("bad result count: %d", keep);
+        }
+        _alphabet = config.alphabet();
+        _plugboardCycles = plugboard;
+        _plugboard = new Permutation(plugboard, _alphabet);
+        _keep = keep;
+        int[] cipher = new int[ciphertext.length()];
+        int len = 0;
+        for (int index = 0; index < ciphertext.length(); index++) {
+            int c = _alphabet.toInt(ciphertext.charAt(index));
+            if (c >= 0) {
+                cipher[len++] = c;
+            }
+        }
+        if (len < 2) {
+            throw error("ciphertext too short");
+        }
+        _cipher = Arrays.copyOf(cipher, len);
+        _orders = rotorOrders(config);
+        if (_orders.isEmpty()) {
+            throw error("no valid rotor orders");
+        }
+        long space = 1;
+        try {
+            for (int k = 1; k < config.numRotors(); k++) {
+                space = Math.multiplyExact(space, _alphabet.size());
+            }
+            Math.multiplyExact(space, _orders.size());
+        } catch (ArithmeticException excp) {
+            throw error("search space too large");
+        }
+        _positionCount = space;
+    }
+
+    /** Return every sequence of rotors from the catalog of CONFIG that
+     *  could be inserted in it: a reflector, then non-moving rotors, then
+     *  numPawls() moving rotors, with no rotor used twice. */
+    static List<MachineSpec> rotorOrders(Machine config) {
+        List<Rotor> reflectors = new ArrayList<>();
+        List<Rotor> fixed = new ArrayList<>();
+        List<Rotor> moving = new ArrayList<>();
+        for (Rotor r : config.allRotors()) {
+            if (r.reflecting()) {
+                reflectors.add(r);
+            } else if (r.rotates()) {
+                moving.add(r);
+            } else {
+                fixed.add(r);
+            }
+        }
+        List<MachineSpec> result = new ArrayList<>();
+        Rotor[] slots = new Rotor[config.numRotors()];
+        int firstMoving = config.numRotors() - config.numPawls();
+        if (firstMoving < 1) {
+            return result;
+        }
+        for (Rotor reflector : reflectors) {
+            slots[0] = reflector;
+            addOrders(config.alphabet(), slots, 1, firstMoving, fixed, moving,
+                      result);
+        }
+        return result;
+    }
+
+    /** Add to RESULT a spec for every way of filling SLOTS from index K
+     *  on with distinct rotors, taken from FIXED below slot FIRSTMOVING
+     *  and from MOVING after it, with alphabet ALPHA. */
+    private static void addOrders(Alphabet alpha, Rotor[] slots, int k,
+                                  int firstMoving, List<Rotor> fixed,
+                                  List<Rotor> moving,
+                                  List<MachineSpec> result) {
+        if (k == slots.length) {
+            result.add(new MachineSpec(alpha, slots.clone()));
+            return;
+        }
+        for (Rotor r : k < firstMoving ? fixed : moving) {
+            boolean used = false;
+            for (int j = 1; j < k; j++) {
+                used |= slots[j] == r;
+            }
+            if (!used) {
+                slots[k] = r;
+                addOrders(alpha, slots, k + 1, firstMoving, fixed, moving,
+                          result);
+            }
+        }
+    }
+
+    /** Run the search on POOL and return the best candidates found, best
+     *  first. */
+    List<Candidate> search(ForkJoinPool pool) {
+        long start = System.nanoTime();
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                List<SearchTask> tasks = new ArrayList<>();
+                for (MachineSpec spec : _orders) {
+                    tasks.add(new SearchTask(spec, 0, _positionCount));
+                }
+                invokeAll(tasks);
+            }
+        });
+        _elapsed += System.nanoTime() - start;
+        return Arrays.asList(_best.get());
+    }
+
+    /** Return the number of candidate keys tried so far. */
+    long keysTested() {
+        return _tested.sum();
+    }
+
+    /** Return the time spent searching, in nanoseconds. */
+    long elapsedNanos() {
+        return _elapsed;
+    }
+
+    /** Return the number of keys tried per second of searching. */
+    double keysPerSecond() {
+        return _elapsed == 0 ? 0 : keysTested() * 1e9 / _elapsed;
+    }
+
+    /** Try the positions with numbers FROM .. TO-1 (see positions) for
+     *  the rotors of SPEC. */
+    private void scan(MachineSpec spec, long from, long to) {
+        Machine m = new Machine(spec);
+        m.setPlugboard(_plugboard);
+        int size = _alphabet.size();
+        int n = _cipher.length;
+        int[] pos = positions(from, spec.numRotors());
+        int[] counts = new int[size];
+        for (long key = from; key < to; key++) {
+            m.setPositions(pos);
+            Arrays.fill(counts, 0);
+            long bar = threshold();
+            long score = 0;
+            int max = 0;
+            int index;
+            for (index = 0; index < n; index++) {
+                int cnt = counts[m.convert(_cipher[index])]++;
+                score += 2 * cnt;
+                max = Math.max(max, cnt + 1);
+                if ((index & CHECK_MASK) == CHECK_MASK && bar >= 0) {
+                    long rest = n - 1 - index;
+                    if (score + rest * (2 * max + rest - 1) <= bar) {
+                        break;
+                    }
+                }
+            }
+            if (index == n && score > threshold()) {
+                offer(new Candidate(spec, pos.clone(), score));
+            }
+            for (int k = pos.length - 1; k > 0; k--) {
+                pos[k] += 1;
+                if (pos[k] < size) {
+                    break;
+                }
+                pos[k] = 0;
+            }
+        }
+        _tested.add(to - from);
+    }
+
+    /** Return the rotor positions numbered KEY for a machine with
+     *  NUMROTORS slots.  The last slot varies fastest; slot 0, the
+     *  reflector, is always 0. */
+    private int[] positions(long key, int numRotors) {
+        int[] pos = new int[numRotors];
+        for (int k = numRotors - 1; k > 0; k--) {
+            pos[k] = (int) (key % _alphabet.size());
+            key /= _alphabet.size();
+        }
+        return pos;
+    }
+
+    /** Return the score a completed candidate must beat to be kept, or
+     *  -1 if the table of results is not yet full. */
+    private long threshold() {
+        Candidate[] best = _best.get();
+        return best.length < _keep ? -1 : best[best.length - 1]._score;
+    }
+
+    /** Add C to the table of best results if it belongs there.  The
+     *  table is an immutable sorted array replaced by compare-and-set,
+     *  so readers never lock and writers only retry on a collision. */
+    private void offer(Candidate c) {
+        while (true) {
+            Candidate[] best = _best.get();
+            int at = best.length;
+            while (at > 0 && best[at - 1]._score < c._score) {
+                at -= 1;
+            }
+            if (at >= _keep) {
+                return;
+            }
+            Candidate[] next =
+                new Candidate[Math.min(_keep, best.length + 1)];
+            System.arraycopy(best, 0, next, 0, at);
+            next[at] = c;
+            System.arraycopy(best, at, next, at + 1, next.length - at - 1);
+            if (_best.compareAndSet(best, next)) {
+                return;
+            }
+        }
+    }
+
+    /** A trial key and the score of its decryption. */
+    class Candidate {
+
+        /** A candidate with the rotors of SPEC at positions POS whose
+         *  decryption has SCORE coincident pairs. */
+        Candidate(MachineSpec spec, int[] pos, long score) {
+            _spec = spec;
+            _pos = pos;
+            _score = score;
+        }
+
+        /** Return the index of coincidence of my decryption. */
+        double indexOfCoincidence() {
+            return (double) _score / ((long) _cipher.length
+                                      * (_cipher.length - 1));
+        }
+
+        /** Return the settings line selecting this key. */
+        String settings() {
+            StringBuilder line = new StringBuilder("*");
+            for (Rotor r : _spec.rotors()) {
+                line.append(' ').append(r.name());
+            }
+            line.append(' ');
+            for (int k = 1; k < _pos.length; k++) {
+                line.append(_alphabet.toChar(_pos[k]));
+            }
+            if (!_plugboardCycles.isEmpty()) {
+                line.append(' ').append(_plugboardCycles);
+            }
+            return line.toString();
+        }
+
+        /** My rotors. */
+        private final MachineSpec _spec;
+
+        /** My rotor positions. */
+        private final int[] _pos;
+
+        /** Number of ordered pairs of equal letters in my decryption. */
+        private final long _score;
+    }
+
+    /** A search over a range of positions of one rotor order. */
+    private class SearchTask extends RecursiveAction {
+
+        /** A task trying the positions numbered FROM .. TO-1 for the
+         *  rotors of SPEC. */
+        SearchTask(MachineSpec spec, long from, long to) {
+            _spec = spec;
+            _from = from;
+            _to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (_to - _from <= LEAF_KEYS) {
+                scan(_spec, _from, _to);
+            } else {
+                long mid = _from + (_to - _from) / 2;
+                invokeAll(new SearchTask(_spec, _from, mid),
+                          new SearchTask(_spec, mid, _to));
+            }
+        }
+
+        /** The rotor order. */
+        private final MachineSpec _spec;
+
+        /** The first position number tried. */
+        private final long _from;
+
+        /** The position number after the last one tried. */
+        private final long _to;
+
+        /** Serialization version. */
+        private static final long serialVersionUID = 1L;
+    }
+
+    /** Largest number of keys tried by one task without splitting. */
+    private static final int LEAF_KEYS = 1 << 10;
+
+    /** A candidate is checked for abandonment when the number of letters
+     *  decrypted has all these bits set. */
+    private static final int CHECK_MASK = 63;
+
+    /** The alphabet of the machine. */
+    private final Alphabet _alphabet;
+
+    /** The plugboard as given, in cycle notation. */
+    private final String _plugboardCycles;
+
+    /** The plugboard used for every key. */
+    private final Permutation _plugboard;
+
+    /** The ciphertext, as indices into _alphabet. */
+    private final int[] _cipher;
+
+    /** Number of results to keep. */
+    private final int _keep;
+
+    /** Every rotor order tried. */
+    private final List<MachineSpec> _orders;
+
+    /** Number of sets of positions tried for each rotor order. */
+    private final long _positionCount;
+
+    /** The best candidates so far, best first. */
+    private final AtomicReference<Candidate[]> _best =
+        new AtomicReference<>(new Candidate[0]);
+
+    /** Number of keys tried. */
+    private final LongAdder _tested = new LongAdder();
+
+    /** Time spent in search, in nanoseconds. */
+    private long _elapsed;
+
+}
@@ -0,0 +1,409 @@
+package enigma;
+
+import java.io.IOException;
+
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import static enigma.EnigmaException.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/** The complete keystream of a machine setup, stored in a memory-mapped
+ *  file.  With its rotors and plugboard fixed, a machine's substitution
+ *  for each character depends only on its rotor settings, and the
+ *  settings run through a fixed sequence: after a prefix of PREFIX
+ *  characters they repeat with period PERIOD (a little less than the
+ *  number of settings, since the double step skips some).  A Keystream
+ *  holds one row of the substitution for each of the PREFIX + PERIOD
+ *  characters, so converting the character at any offset from the
+ *  start is a single table lookup.
+ *
+ *  A table serves only the one setup it was built from, starting at its
+ *  rotor settings: a settings line reuses it only if the same line
+ *  recurs.
+ *
+ *  The file is off-heap and read-only once built, so any number of
+ *  JVMs may map the same file.  It is named by a SHA-256 digest of the
+ *  text identifying its setup (see identity), and its header holds that
+ *  text in full, which must match exactly for the file to be used, so a
+ *  clash of names can never substitute another setup's keystream.
+ *  Layout (big-endian):
+ *  <pre>
+ *    int MAGIC, int VERSION, int alphabet size,
+ *    int bytes per entry (1 or 2), long prefix, long period,
+ *    int identity length N, N bytes of identity (UTF-8),
+ *    zero padding to a multiple of 8 bytes,
+ *    then (prefix + period) rows of size entries.
+ *  </pre>
+ *  @author Jonny W.
+ */
+class Keystream {
+
+    /** Return the text identifying the setup of M (its rotors, their
+     *  settings and its plugboard) under the configuration whose text
+     *  is CONFIG. */
+    static String identity(String config, Machine m) {
+        StringBuilder result = new StringBuilder(config).append('\0');
+        for (int k = 0; k < m.numRotors(); k++) {
+            result.append(m.getRotor(k).name()).append(' ')
+                .append(m.setting(k)).append(' ');
+        }
+        Permutation plugboard = m.plugboard();
+        for (int c = 0; c < m.alphabet().size(); c++) {
+            result.append(plugboard == null ? c : plugboard.permute(c))
+                .append(',');
+        }
+        return result.toString();
+    }
+
+    /** Return the name of the keystream file for the setup identified by
+     *  IDENTITY: the hexadecimal SHA-256 digest of IDENTITY. */
+    static String fileName(String identity) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                .digest(identity.getBytes(UTF_8));
+            StringBuilder result = new StringBuilder();
+            for (byte b : digest) {
+                result.append(String.format("%02x", b & 0xff));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException excp) {
+            throw error("SHA-256 is not available");
+        }
+    }
+
+    /** Return a copy of M, with its rotors, settings and plugboard, for
+     *  use by build or estimateBytes after M has moved on. */
+    static Machine snapshot(Machine m) {
+        Machine result = new Machine(m.spec());
+        result.setPositions(positions(m));
+        result.setPlugboard(m.plugboard());
+        return result;
+    }
+
+    /** Return the number of bytes a keystream file for the current setup
+     *  of M, identified by IDENTITY, would take, or -1 if that is more
+     *  than MAX_BYTES.  This steps through the settings once or twice to
+     *  find their period, so costs time proportional to the result, but
+     *  no memory. */
+    static long estimateBytes(Machine m, String identity) {
+        long header = headerSize(identity.getBytes(UTF_8));
+        long[] shape = shape(m.spec(), positions(m), MAX_BYTES - header);
+        return shape == null ? -1 : header + bytesFor(m, shape);
+    }
+
+    /** Return the keystream in FILE if it exists and was built for the
+     *  setup identified by IDENTITY, and otherwise null. */
+    static Keystream open(Path file, String identity) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        byte[] expected = identity.getBytes(UTF_8);
+        long header = headerSize(expected);
+        try (FileChannel channel =
+             FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < header || channel.size() > MAX_BYTES) {
+                return null;
+            }
+            MappedByteBuffer map =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION
+                || map.getInt(IDENTITY_AT - 4) != expected.length) {
+                return null;
+            }
+            for (int index = 0; index < expected.length; index++) {
+                if (map.get(IDENTITY_AT + index) != expected[index]) {
+                    return null;
+                }
+            }
+            int size = map.getInt(8);
+            int width = map.getInt(12);
+            long prefix = map.getLong(16);
+            long period = map.getLong(24);
+            if (size < 1 || (width != 1 && width != 2) || prefix < 0
+                || period < 1
+                || header + (prefix + period) * size * width
+                   != channel.size()) {
+                return null;
+            }
+            return new Keystream(map, (int) header, size, width, prefix,
+                                 period);
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+
+    /** Build the keystream for the current setup of M, which is not
+     *  changed and is identified by IDENTITY, in FILE, and return it.
+     *  The table is written to a temporary file that replaces FILE only
+     *  when complete, so readers never see a partial table.  If the
+     *  building thread is interrupted, the build is abandoned and its
+     *  temporary file removed. */
+    static Keystream build(Path file, Machine m, String identity) {
+        MachineSpec spec = m.spec();
+        int[] start = positions(m);
+        byte[] id = identity.getBytes(UTF_8);
+        long header = headerSize(id);
+        long[] shape = shape(spec, start, MAX_BYTES - header);
+        if (shape == null) {
+            throw error("keystream too large");
+        }
+        int size = spec.size();
+        int width = size <= BYTE_ALPHABET ? 1 : 2;
+        long total = header + bytesFor(m, shape);
+        Path tmp = null;
+        try {
+            Path dir = file.toAbsolutePath().getParent();
+            Files.createDirectories(dir);
+            tmp = Files.createTempFile(dir, ".keystream", ".tmp");
+            try (FileChannel channel =
+                 FileChannel.open(tmp, StandardOpenOption.READ,
+                                  StandardOpenOption.WRITE)) {
+                MappedByteBuffer map = channel.map(
+                    FileChannel.MapMode.READ_WRITE, 0, total);
+                map.putInt(MAGIC).putInt(VERSION).putInt(size)
+                    .putInt(width).putLong(shape[0]).putLong(shape[1])
+                    .putInt(id.length).put(id);
+                map.position((int) header);
+                fill(map, spec, m.plugboard(), start, shape[0] + shape[1],
+                     width);
+                map.force();
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException excp) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException excp) {
+            throw error("could not write keystream %s: %s", file,
+                        excp.getMessage());
+        } finally {
+            try {
+                if (tmp != null) {
+                    Files.deleteIfExists(tmp);
+                }
+            } catch (IOException excp) {
+                /* Only a leftover temporary file. */
+            }
+        }
+        Keystream result = open(file, identity);
+        if (result == null) {
+            throw error("could not read keystream %s", file);
+        }
+        return result;
+    }
+
+    /** Start building the keystream for the current setup of M,
+     *  identified by IDENTITY, in FILE on EXECUTOR, returning its eventual
+     *  value.  M, typically a snapshot, must not be changed afterwards. */
+    static CompletableFuture<Keystream> buildInBackground(
+        Path file, Machine m, String identity, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> build(file, m, identity),
+                                             executor);
+    }
+
+    /** A keystream mapped in MAP, of PREFIX + PERIOD rows of SIZE
+     *  entries of WIDTH bytes each, following a header of BASE bytes. */
+    private Keystream(MappedByteBuffer map, int base, int size, int width,
+                      long prefix, long period) {
+        _map = map;
+        _base = base;
+        _size = size;
+        _width = width;
+        _prefix = prefix;
+        _period = period;
+    }
+
+    /** Return the number of characters before the settings start to
+     *  repeat. */
+    long prefix() {
+        return _prefix;
+    }
+
+    /** Return the number of characters after which the settings
+     *  repeat. */
+    long period() {
+        return _period;
+    }
+
+    /** Return the conversion of C, an alphabet index, as the character
+     *  at OFFSET from the start of the setup. */
+    int convert(long offset, int c) {
+        long row = offset < _prefix ? offset
+            : _prefix + (offset - _prefix) % _period;
+        int at = (int) (_base + (row * _size + c) * _width);
+        return _width == 1 ? _map.get(at) & 0xff : _map.getChar(at);
+    }
+
+    /** Convert INDICES[OFF .. OFF+LEN-1] in place, as the characters
+     *  starting at OFFSET from the start of the setup. */
+    void convert(long offset, int[] indices, int off, int len) {
+        long row = offset < _prefix ? offset
+            : _prefix + (offset - _prefix) % _period;
+        long rows = _prefix + _period;
+        for (int index = off; index < off + len; index++) {
+            int at = (int) (_base + (row * _size + indices[index])
+                            * _width);
+            indices[index] =
+                _width == 1 ? _map.get(at) & 0xff : _map.getChar(at);
+            row += 1;
+            if (row == rows) {
+                row = _prefix;
+            }
+        }
+    }
+
+    /** Return the rotor settings of M. */
+    private static int[] positions(Machine m) {
+        int[] result = new int[m.numRotors()];
+        for (int k = 1; k < result.length; k++) {
+            result[k] = m.setting(k);
+        }
+        return result;
+    }
+
+    /** Return the size in bytes of the header of a keystream file whose
+     *  identity is ID. */
+    private static long headerSize(byte[] id) {
+        return (IDENTITY_AT + id.length + 7) & ~7L;
+    }
+
+    /** Return the size in bytes of the rows of a keystream for M whose
+     *  settings have prefix and period SHAPE. */
+    private static long bytesFor(Machine m, long[] shape) {
+        int size = m.alphabet().size();
+        return (shape[0] + shape[1]) * size * (size <= BYTE_ALPHABET ? 1 : 2);
+    }
+
+    /** Return { prefix, period } of the settings of a machine with rotors
+     *  SPEC starting at settings START, counted in characters (the
+     *  settings used for each character are those after its step), or
+     *  null if its rows would exceed MAX_ROWS_BYTES bytes.  Uses Brent's
+     *  cycle finding, so only a few settings arrays are kept. */
+    private static long[] shape(MachineSpec spec, int[] start,
+                                long maxRowsBytes) {
+        int size = spec.size();
+        long limit =
+            maxRowsBytes / ((long) size * (size <= BYTE_ALPHABET ? 1 : 2));
+        int[] first = start.clone();
+        spec.step(first);
+        int[] tortoise = first.clone();
+        int[] hare = first.clone();
+        spec.step(hare);
+        long power = 1, period = 1, steps = 0;
+        while (!Arrays.equals(tortoise, hare)) {
+            if (power == period) {
+                System.arraycopy(hare, 0, tortoise, 0, hare.length);
+                power *= 2;
+                period = 0;
+            }
+            spec.step(hare);
+            period += 1;
+            steps += 1;
+            if (period > limit || steps > 4 * limit) {
+                return null;
+            }
+        }
+        System.arraycopy(first, 0, tortoise, 0, first.length);
+        System.arraycopy(first, 0, hare, 0, first.length);
+        for (long k = 0; k < period; k++) {
+            spec.step(hare);
+        }
+        long prefix = 0;
+        while (!Arrays.equals(tortoise, hare)) {
+            spec.step(tortoise);
+            spec.step(hare);
+            prefix += 1;
+            if (prefix + period > limit) {
+                return null;
+            }
+        }
+        return prefix + period > limit ? null : new long[] { prefix, period };
+    }
+
+    /** Write ROWS rows of the keystream of the rotors SPEC with plugboard
+     *  PLUGBOARD (or none, if null) from settings START into MAP, with
+     *  entries of WIDTH bytes.  Stops with an error if the current thread
+     *  is interrupted. */
+    private static void fill(MappedByteBuffer map, MachineSpec spec,
+                             Permutation plugboard, int[] start, long rows,
+                             int width) {
+        int size = spec.size();
+        int[] plug = plugboard == null
+            ? Permutation.identity(size) : plugboard.forwardTable();
+        int[] pos = start.clone();
+        int fast = pos.length - 1;
+        int[] inner = new int[size];
+        spec.fuse(pos, inner);
+        for (long row = 0; row < rows; row++) {
+            if (row % INTERRUPT_CHECK == 0
+                && Thread.currentThread().isInterrupted()) {
+                throw error("keystream build interrupted");
+            }
+            if (spec.step(pos)) {
+                spec.fuse(pos, inner);
+            }
+            int p = pos[fast];
+            for (int c = 0; c < size; c++) {
+                int e = plug[spec.backward(fast, p,
+                                           inner[spec.forward(fast, p,
+                                                              plug[c])])];
+                if (width == 1) {
+                    map.put((byte) e);
+                } else {
+                    map.putChar((char) e);
+                }
+            }
+        }
+    }
+
+    /** Identifies a keystream file: "ENGK". */
+    private static final int MAGIC = 0x454E474B;
+
+    /** Version of the layout above. */
+    static final int VERSION = 2;
+
+    /** Offset of the identity in the header. */
+    private static final int IDENTITY_AT = 36;
+
+    /** Rows written between checks for interruption. */
+    private static final int INTERRUPT_CHECK = 1 << 12;
+
+    /** Largest alphabet whose entries fit in one byte. */
+    private static final int BYTE_ALPHABET = 256;
+
+    /** Largest file, in bytes, that will be built or mapped.  This also
+     *  keeps every offset within an int-indexed mapping. */
+    static final long MAX_BYTES = (1L << 31) - 1;
+
+    /** The mapped file. */
+    private final MappedByteBuffer _map;
+
+    /** Bytes of header before the first row. */
+    private final int _base;
+
+    /** Alphabet size: the number of entries in each row. */
+    private final int _size;
+
+    /** Bytes per entry. */
+    private final int _width;
+
+    /** Rows before the repeating part. */
+    private final long _prefix;
+
+    /** Rows in the repeating part. */
+    private final long _period;
+
+}
@@ -0,0 +1,107 @@
+package enigma;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** A histogram of latencies, such as those of server requests or machine
+ *  setups, with buckets growing geometrically so that percentiles are
+ *  accurate to within about 6% at any scale.  Recording is lock-free.
+ *  @author Jonny W.
+ */
+class LatencyHistogram {
+
+    /** Record an operation that took NANOS nanoseconds. */
+    void record(long nanos) {
+        _counts.incrementAndGet(bucket(Math.max(nanos, 1)));
+        _max.accumulateAndGet(nanos, Math::max);
+    }
+
+    /** Return the bucket holding NANOS: the position of its highest
+     *  bit, refined by the SUB_BITS bits below it. */
+    private static int bucket(long nanos) {
+        int high = 63 - Long.numberOfLeadingZeros(nanos);
+        if (high < SUB_BITS) {
+            return (int) nanos;
+        }
+        int sub = (int) (nanos >>> (high - SUB_BITS)) & SUB_MASK;
+        return ((high - SUB_BITS + 1) << SUB_BITS) + sub;
+    }
+
+    /** Return the largest latency falling in bucket B. */
+    private static long upperBound(int b) {
+        if (b < (1 << SUB_BITS)) {
+            return b;
+        }
+        int shift = (b >>> SUB_BITS) - 1;
+        long base = ((long) (1 << SUB_BITS) | (b & SUB_MASK)) << shift;
+        return base + (1L << shift) - 1;
+    }
+
+    /** Return the latency below which lie the fraction Q of recorded
+     *  operations, in nanoseconds, given bucket COUNTS totalling
+     *  TOTAL. */
+    private static long percentile(long[] counts, long total, double q) {
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int b = 0; b < counts.length; b++) {
+            seen += counts[b];
+            if (seen >= rank && seen > 0) {
+                return upperBound(b);
+            }
+        }
+        return 0;
+    }
+
+    /** Return the latency below which lie the fraction Q of recorded
+     *  operations, in nanoseconds, but no more than the longest. */
+    long quantile(double q) {
+        long[] counts = new long[_counts.length()];
+        long total = 0;
+        for (int b = 0; b < counts.length; b++) {
+            counts[b] = _counts.get(b);
+            total += counts[b];
+        }
+        return Math.min(_max.get(), percentile(counts, total, q));
+    }
+
+    /** Return the number of operations recorded and their latency
+     *  percentiles in microseconds, as "count=N p50=.. ...". */
+    String summary() {
+        long[] counts = new long[_counts.length()];
+        long total = 0;
+        for (int b = 0; b < counts.length; b++) {
+            counts[b] = _counts.get(b);
+            total += counts[b];
+        }
+        long max = _max.get();
+        StringBuilder result = new StringBuilder("count=" + total);
+        for (int k = 0; k < QUANTILES.length; k++) {
+            long p = Math.min(max, percentile(counts, total, QUANTILES[k]));
+            result.append(String.format(" %s=%.1fus", QUANTILE_NAMES[k],
+                                        p / 1e3));
+        }
+        result.append(String.format(" max=%.1fus", max / 1e3));
+        return result.toString();
+    }
+
+    /** Bits of each latency kept below its highest bit. */
+    private static final int SUB_BITS = 4;
+
+    /** Mask for those bits. */
+    private static final int SUB_MASK = (1 << SUB_BITS) - 1;
+
+    /** Reported quantiles. */
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    /** Names of QUANTILES. */
+    private static final String[] QUANTILE_NAMES =
+        { "p50", "p90", "p99", "p999" };
+
+    /** Number of operations in each bucket. */
+    private final AtomicLongArray _counts =
+        new AtomicLongArray((64 - SUB_BITS + 1) << SUB_BITS);
+
+    /** Longest latency recorded. */
+    private final AtomicLong _max = new AtomicLong();
+
+}
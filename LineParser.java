@@ -0,0 +1,183 @@
+package enigma;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/** The splitting of a stream of settings and message lines, as read by
+ *  Main.processStream and Pipeline, into the settings lines, blocks of
+ *  message characters and blank lines that make it up, which are passed
+ *  to a Handler as they are found.  Lines end with "\n", "\r" or
+ *  "\r\n".  Spaces in message lines are dropped, and message characters
+ *  are passed as alphabet indices in blocks of bounded size, so that a
+ *  line is never held in memory as a whole.
+ *  @author Jonny W.
+ */
+class LineParser {
+
+    /** Receives the parts of the input, in order. */
+    interface Handler {
+        /** Apply the settings line LINE, which starts with "*". */
+        void settings(String line);
+
+        /** Take the message characters CHARS[0 .. LEN-1], as alphabet
+         *  indices, which continue the current message line.  CHARS is
+         *  reused once this returns. */
+        void message(int[] chars, int len);
+
+        /** Take an empty line. */
+        void blankLine();
+
+        /** Take the end of the current message line. */
+        void endLine();
+    }
+
+    /** A parser of lines over ALPHABET passing message characters to
+     *  HANDLER in blocks of at most BLOCKSIZE. */
+    LineParser(Alphabet alphabet, int blockSize, Handler handler) {
+        _alphabet = alphabet;
+        _block = new int[blockSize];
+        _handler = handler;
+    }
+
+    /** Parse all of IN, decoded in the default charset, and finish. */
+    void parse(ReadableByteChannel in) throws IOException {
+        CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer bytes = ByteBuffer.allocateDirect(INPUT_BUFFER_SIZE);
+        CharBuffer chars = CharBuffer.allocate(INPUT_BUFFER_SIZE / 8);
+        boolean eof = false;
+        while (!eof) {
+            eof = in.read(bytes) < 0;
+            bytes.flip();
+            CoderResult result;
+            do {
+                result = decoder.decode(bytes, chars, eof);
+                if (eof && result.isUnderflow()) {
+                    decoder.flush(chars);
+                }
+                chars.flip();
+                while (chars.hasRemaining()) {
+                    parse(chars.get());
+                }
+                chars.clear();
+            } while (result.isOverflow());
+            bytes.compact();
+        }
+        finish();
+    }
+
+    /** Parse the input character C. */
+    void parse(char c) {
+        if (_afterReturn) {
+            _afterReturn = false;
+            if (c == '\n') {
+                return;
+            }
+        }
+        if (c == '\n' || c == '\r') {
+            endLine();
+            _afterReturn = c == '\r';
+            return;
+        }
+        switch (_lineKind) {
+        case LINE_START:
+            if (c == '*') {
+                _lineKind = SETTINGS_LINE;
+                _settingsLine.append(c);
+                return;
+            }
+            if (!_configured) {
+                throw new EnigmaException("must have a setting");
+            }
+            _lineKind = MESSAGE_LINE;
+            break;
+        case SETTINGS_LINE:
+            _settingsLine.append(c);
+            return;
+        default:
+            break;
+        }
+        if (c != ' ') {
+            if (_pending == _block.length) {
+                _handler.message(_block, _pending);
+                _pending = 0;
+            }
+            _block[_pending] = _alphabet.toInt(c);
+            _pending += 1;
+        }
+    }
+
+    /** Finish the input, ending its last line if that has no
+     *  terminator.  Input with no settings line is an error. */
+    void finish() {
+        if (_lineKind != LINE_START || !_configured) {
+            endLine();
+        }
+    }
+
+    /** Finish the current line. */
+    private void endLine() {
+        if (!_configured && _lineKind != SETTINGS_LINE) {
+            throw new EnigmaException("must have a setting");
+        }
+        switch (_lineKind) {
+        case LINE_START:
+            _handler.blankLine();
+            break;
+        case SETTINGS_LINE:
+            _handler.settings(_settingsLine.toString());
+            _settingsLine.setLength(0);
+            _configured = true;
+            break;
+        default:
+            if (_pending > 0) {
+                _handler.message(_block, _pending);
+                _pending = 0;
+            }
+            _handler.endLine();
+        }
+        _lineKind = LINE_START;
+    }
+
+    /** Values of _lineKind: nothing read yet on the current line, or the
+     *  current line is a settings line or a message line. */
+    private static final int LINE_START = 0, SETTINGS_LINE = 1,
+        MESSAGE_LINE = 2;
+
+    /** Size in bytes of the input buffer. */
+    private static final int INPUT_BUFFER_SIZE = 1 << 20;
+
+    /** The alphabet of message characters. */
+    private final Alphabet _alphabet;
+
+    /** Receives what I parse. */
+    private final Handler _handler;
+
+    /** What kind of line I am in the middle of. */
+    private int _lineKind = LINE_START;
+
+    /** The part of the current settings line parsed so far. */
+    private final StringBuilder _settingsLine = new StringBuilder();
+
+    /** True once I have passed on a settings line. */
+    private boolean _configured;
+
+    /** True iff the last character parsed was a carriage return. */
+    private boolean _afterReturn;
+
+    /** Message characters of the current line not yet passed on, in
+     *  _block[0 .. _pending-1]. */
+    private final int[] _block;
+
+    /** Number of characters waiting in _block. */
+    private int _pending;
+
+}
@@ -1,11 +1,20 @@
 package enigma;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import static enigma.EnigmaException.*;
 
-/** Class that represents a complete enigma machine.
+/** Class that represents a complete enigma machine.  The rotors in its
+ *  slots are described by an immutable MachineSpec, which may be shared
+ *  with other machines; the machine itself only holds the current rotor
+ *  settings and its plugboard.
  *  @author Jonny W.
  */
 class Machine {
@@ -15,10 +24,32 @@ class Machine {
      *  available rotors. */
     Machine(Alphabet alpha, int numRotors, int pawls,
             Collection<Rotor> allRotors) {
+        this(alpha, numRotors, pawls, allRotors, null);
+    }
+
+    /** A new Enigma machine as above that reports what it does to
+     *  LISTENER, or to no one if LISTENER is null. */
+    Machine(Alphabet alpha, int numRotors, int pawls,
+            Collection<Rotor> allRotors, MachineListener listener) {
         _alphabet = alpha;
         _numRotors = numRotors;
         _pawls = pawls;
         _allRotors = allRotors;
+        _rotorIndex = new HashMap<>();
+        for (Rotor r : allRotors) {
+            _rotorIndex.putIfAbsent(r.name(), r);
+        }
+        _listener = listener;
+    }
+
+    /** A new Enigma machine whose slots are filled as described by SPEC,
+     *  with all rotors at their 0 setting.  This is cheap: the machine
+     *  shares SPEC and only allocates its own settings. */
+    Machine(MachineSpec spec) {
+        this(spec.alphabet(), spec.numRotors(), spec.numPawls(),
+             spec.rotors(), null);
+        _spec = spec;
+        _positions = new int[spec.numRotors()];
     }
 
     /** Return the number of rotor slots I have. */
@@ -31,46 +62,120 @@ class Machine {
         return _pawls;
     }
 
+    /** Return the collection of rotors I may be fitted with. */
+    Collection<Rotor> allRotors() {
+        return _allRotors;
+    }
+
     /** Return Rotor #K, where Rotor #0 is the reflector, and Rotor
      *  #(numRotors()-1) is the fast Rotor.  Modifying this Rotor has
-     *  undefined results. */
+     *  undefined results.  Its own setting is not mine; see setting. */
     Rotor getRotor(int k) {
-        return curRotors.get(k);
+        return _spec.rotor(k);
+    }
+
+    /** Return the current setting of Rotor #K. */
+    int setting(int k) {
+        return _positions[k];
     }
 
     Alphabet alphabet() {
         return _alphabet;
     }
 
+    /** Return the specification of my current rotors. */
+    MachineSpec spec() {
+        return _spec;
+    }
+
     /** Set my rotor slots to the rotors named ROTORS from my set of
      *  available rotors (ROTORS[0] names the reflector).
      *  Initially, all rotors are set at their 0 setting. */
     void insertRotors(String[] rotors) {
-        if (curRotors.size() > 0) {
-            curRotors = new ArrayList<Rotor>();
+        if (rotors.length != numRotors()) {
+            throw new EnigmaException("wrong number of rotors");
         }
+        Rotor[] slots = new Rotor[rotors.length];
         for (int index = 0; index < rotors.length; index++) {
-            boolean rotAdded = false;
-            for (Rotor r : _allRotors) {
-                if (rotors[index].equals(r.name())) {
-                    curRotors.add(r);
-                    rotAdded = true;
-                    break;
-                }
-            }
-            if (!rotAdded) {
+            slots[index] = _rotorIndex.get(rotors[index]);
+            if (slots[index] == null) {
                 throw new EnigmaException("no such rotor");
             }
         }
+        flushConversions();
+        _spec = new MachineSpec(_alphabet, slots);
+        _positions = new int[rotors.length];
+        _innerStale = true;
+        reportSettings();
     }
 
     /** Set my rotors according to SETTING, which must be a string of
      *  numRotors()-1 characters in my alphabet. The first letter refers
      *  to the leftmost rotor setting (not counting the reflector).  */
     void setRotors(String setting) {
-        for (int index = 1; index < curRotors.size(); index++) {
-            curRotors.get(index).set(setting.charAt(index - 1));
+        flushConversions();
+        for (int index = 1; index < _positions.length; index++) {
+            int posn = _alphabet.toInt(setting.charAt(index - 1));
+            if (posn < 0) {
+                throw new EnigmaException("wrong rotor configurations");
+            }
+            _positions[index] = posn;
         }
+        _innerStale = true;
+        reportSettings();
+    }
+
+    /** Set my rotors to the settings SETTINGS, indexed like getRotor. */
+    void setPositions(int[] settings) {
+        flushConversions();
+        System.arraycopy(settings, 1, _positions, 1, _positions.length - 1);
+        _innerStale = true;
+        reportSettings();
+    }
+
+    /** Tell my listener, if any, the settings of all my rotors. */
+    private void reportSettings() {
+        if (_listener != null) {
+            for (int index = 1; index < _positions.length; index++) {
+                _listener.rotorMoved(index, _positions[index]);
+            }
+        }
+    }
+
+    /** Return the settings my rotors would have after OFFSET further
+     *  characters had been converted, indexed like getRotor (entry 0,
+     *  the reflector, is always 0).  Does not change my state.  See
+     *  MachineSpec.positionsAt for how this avoids stepping OFFSET
+     *  times. */
+    int[] positionsAt(long offset) {
+        return _spec.positionsAt(_positions, offset);
+    }
+
+    /** Set my rotors to the settings they would have after OFFSET further
+     *  characters had been converted. See positionsAt. */
+    void seek(long offset) {
+        setPositions(positionsAt(offset));
+    }
+
+    /** Return my rotors, settings and plugboard, to be restored later
+     *  (by this or any machine with the same rotor catalog). */
+    Setup setup() {
+        return new Setup(_spec, _positions.clone(), _plugboard);
+    }
+
+    /** Put my rotors, settings and plugboard back as recorded in
+     *  SETUP. */
+    void restore(Setup setup) {
+        int[] positions = setup._positions;
+        flushConversions();
+        _spec = setup._spec;
+        if (_positions == null || _positions.length != positions.length) {
+            _positions = new int[positions.length];
+        }
+        System.arraycopy(positions, 0, _positions, 0, positions.length);
+        _plugboard = setup._plugboard;
+        _innerStale = true;
+        reportSettings();
     }
 
     /** Return the current plugboard's permutation. */
@@ -87,69 +192,286 @@ class Machine {
      *  index in the range 0..alphabet size - 1), after first advancing
      *  the machine. */
     int convert(int c) {
+        if (_listener != null) {
+            return convertTraced(c);
+        }
         advanceRotors();
-        if (Main.verbose()) {
-            System.err.printf("[");
-            for (int r = 1; r < numRotors(); r += 1) {
-                System.err.printf("%c",
-                        alphabet().toChar(getRotor(r).setting()));
+        c = plugboard().permute(c);
+        c = applyRotors(c);
+        if (++_unreported >= REPORT_INTERVAL) {
+            reportConversions(0);
+        }
+        return plugboard().permute(c);
+    }
+
+    /** Add the characters converted and rotors turned over since the
+     *  last report, and CONVERSIONS bulk conversions, to EngineStats. */
+    private void reportConversions(int conversions) {
+        EngineStats.converted(_unreported, conversions, _turnovers);
+        _unreported = 0;
+        _turnovers = 0;
+    }
+
+    /** Report the characters converted one at a time since the last
+     *  report, if any.  Done whenever my rotors are reset, so that the
+     *  counts of a machine converting one short message after another
+     *  are not held back. */
+    private void flushConversions() {
+        if (_unreported > 0) {
+            reportConversions(0);
+        }
+    }
+
+    /** Returns the result of converting C as convert(int) does, but
+     *  reporting every rotor movement and every mapping to my listener.
+     *  The rotors are applied one at a time rather than through the
+     *  fused table so that each of them can be observed. */
+    private int convertTraced(int c) {
+        int n = numRotors();
+        if (_traceSettings == null || _traceSettings.length != n) {
+            _traceSettings = new int[n];
+        }
+        System.arraycopy(_positions, 0, _traceSettings, 0, n);
+        advanceRotors();
+        for (int index = 1; index < n; index++) {
+            if (_positions[index] != _traceSettings[index]) {
+                _listener.rotorMoved(index, _positions[index]);
             }
-            System.err.printf("] %c -> ", alphabet().toChar(c));
         }
-        c = plugboard().permute(c);
-        if (Main.verbose()) {
-            System.err.printf("%c -> ", alphabet().toChar(c));
+        if (++_unreported >= REPORT_INTERVAL) {
+            reportConversions(0);
         }
-        c = applyRotors(c);
+        int in = c;
         c = plugboard().permute(c);
-        if (Main.verbose()) {
-            System.err.printf("%c%n", alphabet().toChar(c));
+        _listener.plugboardApplied(in, c);
+        for (int index = n - 1; index >= 0; index--) {
+            in = c;
+            c = _spec.forward(index, _positions[index], c);
+            _listener.rotorMapped(index, in, c);
         }
+        for (int index = 1; index < n; index++) {
+            in = c;
+            c = _spec.backward(index, _positions[index], c);
+            _listener.rotorMapped(index, in, c);
+        }
+        in = c;
+        c = plugboard().permute(c);
+        _listener.plugboardApplied(in, c);
         return c;
     }
 
     /** Advance all rotors to their next position. */
     private void advanceRotors() {
-        boolean[] doubStep = new boolean[numRotors()];
-        for (int index = 1; index < numRotors() - 1; index++) {
-            if (getRotor(index).rotates() && getRotor(index + 1).atNotch()) {
-                doubStep[index] = doubStep[index + 1] = true;
-            }
-        }
-        doubStep[numRotors() - 1] = true;
-        for (int index = 1; index < numRotors(); index++) {
-            if (doubStep[index]) {
-                getRotor(index).advance();
-            }
+        if (_spec.step(_positions)) {
+            _innerStale = true;
+            _turnovers += 1;
         }
     }
 
     /** Return the result of applying the rotors to the character C (as an
-     *  index in the range 0..alphabet size - 1). */
+     *  index in the range 0..alphabet size - 1).  Only the fast rotor is
+     *  applied individually; everything to its left goes through the
+     *  fused table _inner, which is rebuilt only when one of those rotors
+     *  has moved. */
     private int applyRotors(int c) {
-        for (int index = numRotors() - 1; index >= 0; index--) {
-            c = getRotor(index).convertForward(c);
-        }
-        for (int index = 1; index < numRotors(); index++) {
-            c = getRotor(index).convertBackward(c);
+        if (_innerStale) {
+            if (_inner == null || _inner.length != _spec.size()) {
+                _inner = new int[_spec.size()];
+            }
+            _spec.fuse(_positions, _inner);
+            _innerStale = false;
         }
-        return c;
+        int fast = _positions.length - 1;
+        int posn = _positions[fast];
+        return _spec.backward(fast, posn,
+                              _inner[_spec.forward(fast, posn, c)]);
     }
 
     /** Returns the encoding/decoding of MSG, updating the state of
      *  the rotors accordingly. */
     String convert(String msg) {
-        char[] cvtMsg = msg.toCharArray();
-        int[] intMsg = new int[cvtMsg.length];
-        String result = "";
-        for (int index = 0; index < cvtMsg.length; index++) {
-            intMsg[index] = alphabet().toInt(cvtMsg[index]);
-            intMsg[index] = convert(intMsg[index]);
-            result += alphabet().toChar(intMsg[index]);
+        char[] text = msg.toCharArray();
+        convert(text, 0, text.length, text, 0);
+        return new String(text);
+    }
+
+    /** Convert the LEN characters SRC[OFF .. OFF+LEN-1], storing the
+     *  results in DST[DSTOFF .. DSTOFF+LEN-1] and updating the state of
+     *  the rotors accordingly.  SRC and DST may be the same array as long
+     *  as DSTOFF <= OFF. */
+    void convert(char[] src, int off, int len, char[] dst, int dstOff) {
+        EngineEvents.Conversion event =
+            EngineEvents.startConversion(++_conversions);
+        Alphabet alpha = alphabet();
+        for (int index = 0; index < len; index++) {
+            dst[dstOff + index] =
+                alpha.toChar(convert(alpha.toInt(src[off + index])));
+        }
+        reportConversions(1);
+        EngineEvents.endConversion(event, len);
+    }
+
+    /** Convert in place the LEN alphabet indices INDICES[OFF ..
+     *  OFF+LEN-1], updating the state of the rotors accordingly. */
+    void convert(int[] indices, int off, int len) {
+        EngineEvents.Conversion event =
+            EngineEvents.startConversion(++_conversions);
+        for (int index = off; index < off + len; index++) {
+            indices[index] = convert(indices[index]);
+        }
+        reportConversions(1);
+        EngineEvents.endConversion(event, len);
+    }
+
+    /** Convert characters from SRC into DST until one of them is
+     *  exhausted, advancing both positions. */
+    void convert(CharBuffer src, CharBuffer dst) {
+        int len = Math.min(src.remaining(), dst.remaining());
+        if (src.hasArray() && dst.hasArray()) {
+            convert(src.array(), src.arrayOffset() + src.position(), len,
+                    dst.array(), dst.arrayOffset() + dst.position());
+            src.position(src.position() + len);
+            dst.position(dst.position() + len);
+            return;
+        }
+        EngineEvents.Conversion event =
+            EngineEvents.startConversion(++_conversions);
+        Alphabet alpha = alphabet();
+        for (int index = 0; index < len; index++) {
+            dst.put(alpha.toChar(convert(alpha.toInt(src.get()))));
+        }
+        reportConversions(1);
+        EngineEvents.endConversion(event, len);
+    }
+
+    /** Convert bytes from SRC into DST until one of them is exhausted,
+     *  advancing both positions.  Each byte is taken to be a character
+     *  in the ISO-8859-1 encoding, so this suits alphabets of such
+     *  characters, such as the default one. */
+    void convert(ByteBuffer src, ByteBuffer dst) {
+        int len = Math.min(src.remaining(), dst.remaining());
+        EngineEvents.Conversion event =
+            EngineEvents.startConversion(++_conversions);
+        Alphabet alpha = alphabet();
+        for (int index = 0; index < len; index++) {
+            char c = (char) (src.get() & 0xff);
+            dst.put((byte) alpha.toChar(convert(alpha.toInt(c))));
         }
-        return result;
+        reportConversions(1);
+        EngineEvents.endConversion(event, len);
     }
 
+    /** Returns the encoding/decoding of MSG, exactly as convert(String)
+     *  would, but with the message split into chunks that are converted
+     *  concurrently on POOL.  Each chunk is converted by its own Machine
+     *  sharing my MachineSpec and plugboard, started at the settings that
+     *  positionsAt gives for its offset.  Afterwards my rotors are left
+     *  where convert(String) would have left them. */
+    String convertParallel(String msg, ForkJoinPool pool) {
+        int chunks = (int) Math.min(
+                (long) pool.getParallelism() * CHUNKS_PER_THREAD,
+                msg.length() / MIN_CHUNK);
+        if (chunks <= 1 || _listener != null) {
+            return convert(msg);
+        }
+        char[] text = msg.toCharArray();
+        int[] bounds = new int[chunks + 1];
+        int[][] starts = new int[chunks + 1][];
+        for (int index = 0; index <= chunks; index++) {
+            bounds[index] = (int) ((long) text.length * index / chunks);
+            starts[index] = positionsAt(bounds[index]);
+        }
+        pool.invoke(new ConvertTask(text, bounds, starts, 0, chunks));
+        setPositions(starts[chunks]);
+        return new String(text);
+    }
+
+    /** Converts the chunks LO .. HI-1 of a message for convertParallel,
+     *  splitting the range in half until one chunk is left. */
+    private class ConvertTask extends RecursiveAction {
+
+        /** A task converting chunks LO .. HI-1 of TEXT, where chunk K
+         *  covers TEXT[BOUNDS[K] .. BOUNDS[K+1]-1] and starts at rotor
+         *  settings STARTS[K]. */
+        ConvertTask(char[] text, int[] bounds, int[][] starts,
+                    int lo, int hi) {
+            _text = text;
+            _bounds = bounds;
+            _starts = starts;
+            _lo = lo;
+            _hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (_hi - _lo == 1) {
+                Machine chunk = new Machine(_spec);
+                chunk.setPlugboard(_plugboard);
+                chunk.setPositions(_starts[_lo]);
+                int from = _bounds[_lo];
+                chunk.convert(_text, from, _bounds[_hi] - from, _text, from);
+            } else {
+                int mid = (_lo + _hi) >>> 1;
+                invokeAll(new ConvertTask(_text, _bounds, _starts, _lo, mid),
+                          new ConvertTask(_text, _bounds, _starts, mid, _hi));
+            }
+        }
+
+        /** The message being converted in place. */
+        private final char[] _text;
+
+        /** Chunk boundaries within _text. */
+        private final int[] _bounds;
+
+        /** Starting rotor settings of each chunk. */
+        private final int[][] _starts;
+
+        /** The range of chunks handled by this task. */
+        private final int _lo, _hi;
+
+        /** Serialization version. */
+        private static final long serialVersionUID = 1L;
+    }
+
+    /** A saved state of a machine: its rotors, their settings and its
+     *  plugboard.  Immutable. */
+    static final class Setup {
+
+        /** A state with rotors SPEC at settings POSITIONS and plugboard
+         *  PLUGBOARD.  POSITIONS must not be modified afterwards. */
+        private Setup(MachineSpec spec, int[] positions,
+                      Permutation plugboard) {
+            _spec = spec;
+            _positions = positions;
+            _plugboard = plugboard;
+        }
+
+        /** Return the rotors in use. */
+        MachineSpec spec() {
+            return _spec;
+        }
+
+        /** The rotors. */
+        private final MachineSpec _spec;
+
+        /** The rotor settings. */
+        private final int[] _positions;
+
+        /** The plugboard. */
+        private final Permutation _plugboard;
+    }
+
+    /** Characters converted one at a time are added to EngineStats in
+     *  batches of this many. */
+    private static final int REPORT_INTERVAL = 1 << 12;
+
+    /** Messages are split into at most this many chunks per thread of
+     *  the pool, so that uneven chunks balance out. */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /** Smallest number of characters worth converting as its own chunk. */
+    private static final int MIN_CHUNK = 1 << 14;
+
     /** Common alphabet of my rotors. */
     private final Alphabet _alphabet;
 
@@ -162,10 +484,40 @@ class Machine {
     /** A list of all rotors available. */
     private Collection<Rotor> _allRotors;
 
-    /** An ArrayList of all the rotors in this machine. */
-    private ArrayList<Rotor> curRotors = new ArrayList<Rotor>();
+    /** The rotors of _allRotors by name; the first of any that share a
+     *  name. */
+    private final Map<String, Rotor> _rotorIndex;
+
+    /** The rotors in my slots, compiled.  Shared, never modified. */
+    private MachineSpec _spec;
+
+    /** _positions[K] is the current setting of Rotor #K. */
+    private int[] _positions;
 
     /** The plugboard of this machine. */
     private Permutation _plugboard;
 
+    /** Fused mapping through every rotor left of the fast rotor, out to
+     *  the reflector and back, at their current settings. */
+    private int[] _inner;
+
+    /** True iff _inner no longer reflects the current rotor settings. */
+    private boolean _innerStale = true;
+
+    /** Receives a trace of my operation, or null. */
+    private final MachineListener _listener;
+
+    /** Characters converted since the last report to EngineStats. */
+    private int _unreported;
+
+    /** Steps since the last report to EngineStats that moved a rotor
+     *  other than the fast rotor. */
+    private long _turnovers;
+
+    /** Number of bulk conversions I have done, for sampling them. */
+    private long _conversions;
+
+    /** Rotor settings before the current step, when tracing. */
+    private int[] _traceSettings;
+
 }
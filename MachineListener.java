@@ -0,0 +1,21 @@
+package enigma;
+
+/** Receives a trace of what a Machine does as it converts characters.
+ *  A Machine built without a listener skips all of this.
+ *  @author Jonny W.
+ */
+interface MachineListener {
+
+    /** Called when the rotor in slot SLOT (numbered as for
+     *  Machine.getRotor) has moved to SETTING, whether by stepping or by
+     *  being set. */
+    void rotorMoved(int slot, int setting);
+
+    /** Called when the plugboard maps the index IN to OUT, once as a
+     *  character enters the machine and once as it leaves. */
+    void plugboardApplied(int in, int out);
+
+    /** Called when the rotor in slot SLOT maps the index IN to OUT. */
+    void rotorMapped(int slot, int in, int out);
+
+}
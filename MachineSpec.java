@@ -0,0 +1,380 @@
+package enigma;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static enigma.EnigmaException.*;
+
+/** The fixed part of an Enigma machine's configuration: its alphabet and
+ *  the rotor in each slot, compiled into flat permutation and notch
+ *  tables.  A MachineSpec holds no rotor settings and never changes, so
+ *  one may be shared by any number of Machines on any number of threads;
+ *  each Machine keeps its own settings as an array indexed by slot and
+ *  passes them in.
+ *  @author Jonny W.
+ */
+class MachineSpec {
+
+    /** A specification for a machine over ALPHA whose slots hold ROTORS,
+     *  where ROTORS[0] is the reflector. */
+    MachineSpec(Alphabet alpha, Rotor[] rotors) {
+        if (rotors.length < 2) {
+            throw error("a machine needs at least two rotors");
+        }
+        _alphabet = alpha;
+        _size = alpha.size();
+        _rotors = rotors.clone();
+        int n = rotors.length;
+        _forward = new int[n][];
+        _inverse = new int[n][];
+        _rotates = new boolean[n];
+        _notch = new boolean[n][];
+        int pawls = 0;
+        for (int k = 0; k < n; k++) {
+            Permutation perm = rotors[k].permutation();
+            if (perm.size() != _size) {
+                throw error("rotor %s does not match the alphabet",
+                            rotors[k].name());
+            }
+            _forward[k] = perm.forwardTable();
+            _inverse[k] = perm.inverseTable();
+            _rotates[k] = rotors[k].rotates();
+            _notch[k] = new boolean[_size];
+            for (int p = 0; p < _size; p++) {
+                _notch[k][p] = rotors[k].atNotch(p);
+            }
+            pawls += _rotates[k] ? 1 : 0;
+        }
+        _pawls = pawls;
+        _pushedBy = new int[n][];
+        _doubleSteps = new int[n][];
+        int[] never = new int[_size];
+        for (int k = 1; k < n - 1; k++) {
+            _pushedBy[k] = _rotates[k] ? carries(_notch[k + 1]) : never;
+            _doubleSteps[k] = _rotates[k] && k > 1 && _rotates[k - 1]
+                ? carries(_notch[k]) : never;
+        }
+        _fastMoves = _rotates[n - 1] ? 1 : 0;
+        _quiet = new int[_size];
+        int[] pushes = n > 2 ? _pushedBy[n - 2] : never;
+        int next = Integer.MAX_VALUE;
+        for (int q = 2 * _size - 1; q >= 0; q--) {
+            if (pushes[q % _size] != 0) {
+                next = 0;
+            } else if (_fastMoves == 0) {
+                next = Integer.MAX_VALUE;
+            } else if (next < Integer.MAX_VALUE) {
+                next += 1;
+            }
+            if (q < _size) {
+                _quiet[q] = next;
+            }
+        }
+    }
+
+    /** Return NOTCH as 1s and 0s. */
+    private static int[] carries(boolean[] notch) {
+        int[] result = new int[notch.length];
+        for (int p = 0; p < notch.length; p++) {
+            result[p] = notch[p] ? 1 : 0;
+        }
+        return result;
+    }
+
+    /** Return my alphabet. */
+    Alphabet alphabet() {
+        return _alphabet;
+    }
+
+    /** Return the size of my alphabet. */
+    int size() {
+        return _size;
+    }
+
+    /** Return the number of rotor slots. */
+    int numRotors() {
+        return _rotors.length;
+    }
+
+    /** Return the number of rotors that have pawls. */
+    int numPawls() {
+        return _pawls;
+    }
+
+    /** Return the rotor in slot K, where slot 0 holds the reflector.
+     *  Its own setting is not used by machines built from me. */
+    Rotor rotor(int k) {
+        return _rotors[k];
+    }
+
+    /** Return the rotors in my slots, in order. */
+    List<Rotor> rotors() {
+        return Arrays.asList(_rotors);
+    }
+
+    /** Return true iff the rotor in slot K has a pawl. */
+    boolean rotates(int k) {
+        return _rotates[k];
+    }
+
+    /** Return true iff the rotor in slot K has a notch at setting POSN. */
+    boolean atNotch(int k, int posn) {
+        return _notch[k][posn];
+    }
+
+    /** Return the result of passing the index C through the rotor in slot
+     *  K at setting POSN, going towards the reflector. */
+    int forward(int k, int posn, int c) {
+        int p = c + posn;
+        if (p >= _size) {
+            p -= _size;
+        }
+        int result = _forward[k][p] - posn;
+        return result < 0 ? result + _size : result;
+    }
+
+    /** Return the result of passing the index C through the rotor in slot
+     *  K at setting POSN, coming back from the reflector. */
+    int backward(int k, int posn, int c) {
+        int p = c + posn;
+        if (p >= _size) {
+            p -= _size;
+        }
+        int result = _inverse[k][p] - posn;
+        return result < 0 ? result + _size : result;
+    }
+
+    /** Advance the rotor settings POS (indexed by slot) by one step of the
+     *  machine: the fast rotor always moves, and a rotor with a pawl moves
+     *  when its right neighbour is at a notch, taking that neighbour with
+     *  it.  Like an odometer, each slot's move is a 0 or 1 looked up in
+     *  tables built from the notches, so the only branches are the
+     *  wrap-arounds.  Returns true iff a rotor other than the fast rotor
+     *  moved. */
+    boolean step(int[] pos) {
+        int fast = pos.length - 1;
+        int moved = 0;
+        for (int k = 1; k < fast; k++) {
+            int move = _pushedBy[k][pos[k + 1]] | _doubleSteps[k][pos[k]];
+            int q = pos[k] + move;
+            pos[k] = q == _size ? 0 : q;
+            moved |= move;
+        }
+        int q = pos[fast] + _fastMoves;
+        pos[fast] = q == _size ? 0 : q;
+        return moved != 0;
+    }
+
+    /** Fill INNER with the combined mapping of the reflector and every
+     *  rotor to the left of the fast rotor, out and back, with the rotors
+     *  at settings POS. */
+    void fuse(int[] pos, int[] inner) {
+        fuse(pos, _rotors.length - 2, inner);
+    }
+
+    /** Fill INNER with the combined mapping of the reflector and the
+     *  rotors in slots 1 to LAST, out and back, with the rotors at
+     *  settings POS. */
+    void fuse(int[] pos, int last, int[] inner) {
+        for (int p = 0; p < _size; p++) {
+            int c = p;
+            for (int k = last; k >= 0; k--) {
+                c = forward(k, pos[k], c);
+            }
+            for (int k = 1; k <= last; k++) {
+                c = backward(k, pos[k], c);
+            }
+            inner[p] = c;
+        }
+    }
+
+    /** Return the number of steps in a row from settings POS that will
+     *  move only the fast rotor: 0 if the next step moves another rotor,
+     *  and Integer.MAX_VALUE if no other rotor will ever move. */
+    int quietSteps(int[] pos) {
+        int fast = pos.length - 1;
+        for (int k = 1; k < fast - 1; k++) {
+            if ((_pushedBy[k][pos[k + 1]] | _doubleSteps[k][pos[k]]) != 0) {
+                return 0;
+            }
+        }
+        if (fast > 1 && _doubleSteps[fast - 1][pos[fast - 1]] != 0) {
+            return 0;
+        }
+        return _quiet[pos[fast]];
+    }
+
+    /** Return the settings that rotors starting at settings START would
+     *  have after OFFSET steps, indexed by slot.
+     *
+     *  The rightmost rotor simply moves OFFSET times.  Each rotor to its
+     *  left is moved once for every notch its right neighbour leaves, and
+     *  once more whenever it sits on a notch of its own with a pawl to its
+     *  left (the double step).  As long as no rotor has two adjacent
+     *  notches, those moves can be counted arithmetically from the number
+     *  of moves of the neighbour, so the cost depends only on the number
+     *  of rotors and the alphabet size.  Other notch layouts fall back to
+     *  stepping OFFSET times. */
+    int[] positionsAt(int[] start, long offset) {
+        int n = _rotors.length;
+        int[] pos = start.clone();
+        if (offset <= 0) {
+            return pos;
+        }
+        step(pos);
+        offset -= 1;
+        if (!countable()) {
+            for (; offset > 0; offset--) {
+                step(pos);
+            }
+            return pos;
+        }
+
+        int window = n;
+        long[][] moves = new long[n][window + 1];
+        for (int d = 0; d <= window; d++) {
+            moves[n - 1][d] = _rotates[n - 1] ? Math.max(offset - d, 0) : 0;
+        }
+        for (int k = n - 2; k >= 1; k--) {
+            for (int d = 0; d <= window - (n - 1 - k); d++) {
+                moves[k][d] = movesOf(k, offset - d, moves[k + 1][d],
+                                      moves[k + 1][d + 1], pos);
+            }
+        }
+        for (int k = 1; k < n; k++) {
+            pos[k] = (int) ((pos[k] + moves[k][0]) % _size);
+        }
+        return pos;
+    }
+
+    /** Return the number of times rotor K moves in the first T steps from
+     *  settings POS, given that its right neighbour moves RIGHTMOVES times
+     *  in those steps and RIGHTMOVESBEFORE times in the first T-1. */
+    private long movesOf(int k, long t, long rightMoves,
+                         long rightMovesBefore, int[] pos) {
+        if (t <= 0 || !_rotates[k]) {
+            return 0;
+        }
+        long pushes;
+        if (_rotates[k + 1]) {
+            pushes = rightMoves - nonNotches(_notch[k + 1], pos[k + 1],
+                                             rightMoves);
+        } else {
+            pushes = _notch[k + 1][pos[k + 1]] ? t : 0;
+        }
+        if (!_rotates[k - 1] || pushes == t) {
+            return pushes;
+        }
+        long moved = firstAfterNonNotches(_notch[k], pos[k], pushes);
+        if (!_notch[k][(int) ((pos[k] + moved) % _size)]) {
+            return moved;
+        }
+        int right = (int) ((pos[k + 1] + rightMovesBefore) % _size);
+        boolean pushedLast = _rotates[k + 1] ? _notch[k + 1][right]
+            : _notch[k + 1][pos[k + 1]];
+        return pushedLast ? moved : moved + 1;
+    }
+
+    /** Return how many of the COUNT positions starting at FROM (wrapping
+     *  around) are not marked in NOTCH. */
+    private static long nonNotches(boolean[] notch, int from, long count) {
+        int size = notch.length;
+        long result = 0;
+        int rest = (int) (count % size);
+        for (int index = 0; index < size; index++) {
+            if (!notch[index]) {
+                result += count / size;
+                int dist = index - from;
+                if (dist < 0) {
+                    dist += size;
+                }
+                if (dist < rest) {
+                    result += 1;
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Return the smallest J such that exactly COUNT of the J positions
+     *  starting at FROM (wrapping around) are not marked in NOTCH. */
+    private static long firstAfterNonNotches(boolean[] notch, int from,
+                                             long count) {
+        if (count == 0) {
+            return 0;
+        }
+        int size = notch.length;
+        int free = 0;
+        for (boolean b : notch) {
+            free += b ? 0 : 1;
+        }
+        long full = (count - 1) / free;
+        long rest = (count - 1) % free;
+        for (int dist = 0; ; dist++) {
+            if (!notch[(from + dist) % size]) {
+                if (rest == 0) {
+                    return full * size + dist + 1;
+                }
+                rest -= 1;
+            }
+        }
+    }
+
+    /** Return true iff my notches allow positionsAt to count moves
+     *  arithmetically: no rotor with a pawl has two adjacent notches or a
+     *  notch at every position. */
+    private boolean countable() {
+        for (int k = 1; k < _rotors.length; k++) {
+            if (!_rotates[k]) {
+                continue;
+            }
+            for (int p = 0; p < _size; p++) {
+                if (_notch[k][p] && _notch[k][(p + 1) % _size]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Alphabet of the machine. */
+    private final Alphabet _alphabet;
+
+    /** Size of _alphabet. */
+    private final int _size;
+
+    /** The rotor in each slot. */
+    private final Rotor[] _rotors;
+
+    /** _forward[K] is the permutation table of the rotor in slot K. */
+    private final int[][] _forward;
+
+    /** _inverse[K] is the inverse of _forward[K]. */
+    private final int[][] _inverse;
+
+    /** _rotates[K] is true iff the rotor in slot K has a pawl. */
+    private final boolean[] _rotates;
+
+    /** _notch[K][P] is true iff the rotor in slot K has a notch at P. */
+    private final boolean[][] _notch;
+
+    /** Number of rotors with pawls. */
+    private final int _pawls;
+
+    /** For 0 < K < numRotors() - 1, _pushedBy[K][P] is 1 iff the rotor in
+     *  slot K moves because its right neighbour is at setting P. */
+    private final int[][] _pushedBy;
+
+    /** For 0 < K < numRotors() - 1, _doubleSteps[K][P] is 1 iff the rotor
+     *  in slot K moves because it is itself at setting P. */
+    private final int[][] _doubleSteps;
+
+    /** 1 iff the fast rotor has a pawl. */
+    private final int _fastMoves;
+
+    /** _quiet[P] is the number of steps from the fast rotor at setting P
+     *  before it next pushes its left neighbour, or Integer.MAX_VALUE if
+     *  it never will (see quietSteps). */
+    private final int[] _quiet;
+
+}
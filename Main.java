@@ -1,14 +1,41 @@
 package enigma;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Scanner;
 import java.util.ArrayList;
-import java.util.NoSuchElementException;
 import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import net.sf.saxon.expr.Component;
 import ucb.util.CommandArgs;
@@ -32,13 +59,41 @@ public final class Main {
     public static void main(String... args) {
         try {
             CommandArgs options =
-                new CommandArgs("--verbose --=(.*){1,3}", args);
+                new CommandArgs("--verbose --parallel --sections --stream "
+                                + "--pipeline --cache --keystream "
+                                + "--serve=(\\d+){0,1} --binary=(.+){0,1} "
+                                + "--jmx "
+                                + "--=(.*){1,3}",
+                                args);
             if (!options.ok()) {
                 throw error("Usage: java enigma.Main [--verbose] "
-                            + "[INPUT [OUTPUT]]");
+                            + "[--parallel] [--sections] [--stream] "
+                            + "[--pipeline] [--cache] [--keystream] "
+                            + "[--serve=PORT] [--binary=SETTINGS] [--jmx] "
+                            + "CONFIG [INPUT [OUTPUT]]");
             }
 
             _verbose = options.contains("--verbose");
+            _parallel = options.contains("--parallel");
+            _sections = options.contains("--sections");
+            _stream = options.contains("--stream");
+            _pipeline = options.contains("--pipeline");
+            _cache = options.contains("--cache");
+            _keystream = options.contains("--keystream");
+            _binary = options.getFirst("--binary");
+            if (options.contains("--jmx")) {
+                EngineStats.register();
+            }
+            if (options.contains("--serve")) {
+                int port;
+                try {
+                    port = Integer.parseInt(options.getFirst("--serve"));
+                } catch (NumberFormatException excp) {
+                    throw error("bad port: %s", options.getFirst("--serve"));
+                }
+                new Main(options.get("--")).serve(port);
+                return;
+            }
             new Main(options.get("--")).process();
             return;
         } catch (EnigmaException excp) {
@@ -50,7 +105,25 @@ public final class Main {
     /** Open the necessary files for non-option arguments ARGS (see comment
       *  on main). */
     Main(List<String> args) {
-        _config = getInput(args.get(0));
+        _configName = args.get(0);
+        _configBytes = readFile(_configName);
+        _config = new String(_configBytes);
+
+        if (_stream || _pipeline || _binary != null) {
+            if (args.size() > 1) {
+                _inChannel = getInputChannel(args.get(1));
+            } else {
+                _inChannel = new FileInputStream(FileDescriptor.in)
+                    .getChannel();
+            }
+            if (args.size() > 2) {
+                _outChannel = getOutputChannel(args.get(2));
+            } else {
+                _outChannel = new FileOutputStream(FileDescriptor.out)
+                    .getChannel();
+            }
+            return;
+        }
 
         if (args.size() > 1) {
             _input = getInput(args.get(1));
@@ -65,6 +138,14 @@ public final class Main {
         }
     }
 
+    /** A Main reading its configuration from CONFIG and messages from
+     *  INPUT, and writing processed messages to OUTPUT. */
+    Main(String config, Scanner input, PrintStream output) {
+        _config = config;
+        _input = input;
+        _output = output;
+    }
+
     /** Return a Scanner reading from the file named NAME. */
     private Scanner getInput(String name) {
         try {
@@ -74,6 +155,15 @@ public final class Main {
         }
     }
 
+    /** Return the contents of the file named NAME. */
+    private byte[] readFile(String name) {
+        try {
+            return Files.readAllBytes(Paths.get(name));
+        } catch (IOException | InvalidPathException excp) {
+            throw error("could not open %s", name);
+        }
+    }
+
     /** Return a PrintStream writing to the file named NAME. */
     private PrintStream getOutput(String name) {
         try {
@@ -83,119 +173,414 @@ public final class Main {
         }
     }
 
+    /** Return a channel reading from the file named NAME. */
+    private ReadableByteChannel getInputChannel(String name) {
+        try {
+            return FileChannel.open(Paths.get(name), StandardOpenOption.READ);
+        } catch (IOException excp) {
+            throw error("could not open %s", name);
+        }
+    }
+
+    /** Return a channel writing to the file named NAME. */
+    private WritableByteChannel getOutputChannel(String name) {
+        try {
+            return FileChannel.open(Paths.get(name),
+                                    StandardOpenOption.WRITE,
+                                    StandardOpenOption.CREATE,
+                                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException excp) {
+            throw error("could not open %s", name);
+        }
+    }
+
     /** Configure an Enigma machine from the contents of configuration
      *  file _config and apply it to the messages in _input, sending the
      *  results to _output. */
     private void process() {
+        try {
+            if (_binary != null) {
+                processBinary();
+            } else if (_pipeline) {
+                processPipeline();
+            } else if (_stream) {
+                processStream();
+            } else if (_sections && !_verbose) {
+                processSections();
+            } else {
+                processLines();
+            }
+        } finally {
+            if (_trace != null) {
+                _trace.flush();
+            }
+        }
+    }
+
+    /** Read the configuration in _config and serve requests on the
+     *  local port PORT (see Server) until killed. */
+    private void serve(int port) {
+        EngineStats.register();
+        new Server(this, readConfig(), SESSION_IDLE_MILLIS).serve(port);
+    }
+
+    /** Process the messages in _input a line at a time, as described
+     *  for process. */
+    private void processLines() {
         Machine m = readConfig();
-        String curLine = _input.nextLine();
-        if (curLine.charAt(0) == '*') {
-            setUp(m, curLine.substring(2));
-            if (!m.getRotor(0).reflecting()) {
-                throw new EnigmaException("first rotor must be the reflector");
+        GroupedOutput out =
+            new GroupedOutput(Channels.newChannel(_output),
+                              Charset.defaultCharset(), m.alphabet(),
+                              GROUP_SIZE);
+        try {
+            String curLine = _input.nextLine();
+            if (curLine.charAt(0) == '*') {
+                configure(m, curLine);
+                startKeystream(m);
+            } else {
+                throw new EnigmaException("must have a setting");
             }
-            String rotName = m.getRotor(0).name();
-            for (int index = 1; index < allRot; index++) {
-                for (int index2 = index; index2 < allRot; index2++) {
-                    if (allRotors.get(index2).name().equals(rotName)) {
-                        throw new EnigmaException("duplicated rotors");
+            while (_input.hasNextLine()) {
+                curLine = _input.nextLine();
+                if (curLine.length() < 1) {
+                    out.write(" ");
+                    out.endLine();
+                } else if (curLine.charAt(0) == '*') {
+                    configure(m, curLine);
+                    startKeystream(m);
+                } else if (_parallel) {
+                    String msg = m.convertParallel(curLine.replaceAll(" ", ""),
+                                                   ForkJoinPool.commonPool());
+                    for (int index = 0; index < msg.length(); index++) {
+                        out.append(msg.charAt(index));
                     }
+                    out.endLine();
+                } else {
+                    printMessageLine(m, out, curLine);
                 }
-                rotName = allRotors.get(index).name();
             }
-        } else {
+        } finally {
+            out.flush();
+            _output.flush();
+            stopKeystreamBuilds();
+        }
+    }
+
+    /** Like processLines, but converting the sections of _input that
+     *  start at each settings line concurrently and printing the results
+     *  in input order.  Consecutive sections are gathered into batches of
+     *  at least SECTION_BATCH characters, each converted on its own
+     *  machine.  At most SECTION_WINDOW batches per thread are pending at
+     *  once, which bounds the memory used for reordering.  An error in a
+     *  section is reported after the output that precedes it, as in
+     *  processLines. */
+    private void processSections() {
+        readConfig();
+        String curLine = _input.nextLine();
+        if (curLine.charAt(0) != '*') {
             throw new EnigmaException("must have a setting");
         }
-        while (_input.hasNextLine()) {
-            curLine = _input.nextLine();
-            if (curLine.length() < 1) {
-                _output.println(" ");
-                continue;
-            } else {
-                if (curLine.charAt(0) == '*') {
-                    setUp(m, curLine.substring(2));
-                    if (!m.getRotor(0).reflecting()) {
-                        throw new EnigmaException(
-                                "first rotor must be the reflector");
-                    }
-                    String rotName = m.getRotor(0).name();
-                    for (int index = 1; index < allRot; index++) {
-                        for (int index2 = index; index2 < allRot; index2++) {
-                            if (allRotors.get(index2).name().equals(rotName)) {
-                                throw new EnigmaException("duplicated rotors");
-                            }
-                        }
-                        rotName = allRotors.get(index).name();
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ArrayDeque<Future<SectionOutput>> pending = new ArrayDeque<>();
+        try {
+            List<String> batch = new ArrayList<>();
+            int batchChars = 0;
+            batch.add(curLine);
+            while (_input.hasNextLine()) {
+                curLine = _input.nextLine();
+                if (batchChars >= SECTION_BATCH
+                    && curLine.length() > 0 && curLine.charAt(0) == '*') {
+                    if (pending.size() >= threads * SECTION_WINDOW) {
+                        printSections(pending.remove());
                     }
-                } else {
-                    curLine = curLine.replaceAll(" ", "");
-                    printMessageLine(m.convert(curLine));
+                    List<String> lines = batch;
+                    pending.add(pool.submit(() -> convertSections(lines)));
+                    batch = new ArrayList<>();
+                    batchChars = 0;
                 }
+                batch.add(curLine);
+                batchChars += curLine.length() + 1;
+            }
+            List<String> lines = batch;
+            pending.add(pool.submit(() -> convertSections(lines)));
+            while (!pending.isEmpty()) {
+                printSections(pending.remove());
             }
+        } finally {
+            pool.shutdownNow();
         }
     }
 
-    /** Return an Enigma machine configured from the contents of configuration
-     *  file _config. */
-    private Machine readConfig() {
+    /** Return the output for LINES, which start with a settings line,
+     *  converted on a fresh machine as processLines would.  Conversion
+     *  stops at the first error, which is recorded in the result. */
+    private SectionOutput convertSections(List<String> lines) {
+        SectionOutput result = new SectionOutput();
+        Machine m = new Machine(alph, allRot, movRot, allRotors);
         try {
-            alph = new Alphabet(_config.nextLine());
-            allRot = _config.nextInt();
-            movRot = _config.nextInt();
-            while (_config.hasNext()) {
-                allRotors.add(readRotor());
+            for (String line : lines) {
+                if (line.length() < 1) {
+                    result.text.append(' ').append(System.lineSeparator());
+                } else if (line.charAt(0) == '*') {
+                    configure(m, line);
+                } else {
+                    appendMessageLine(result.text,
+                                      m.convert(line.replaceAll(" ", "")));
+                }
             }
-            return new Machine(alph, allRot, movRot, allRotors);
-        } catch (NoSuchElementException excp) {
-            throw error("configuration file truncated");
+        } catch (RuntimeException excp) {
+            result.error = excp;
         }
+        return result;
     }
 
-    /** Return a rotor, reading its description from _config. */
-    private Rotor readRotor() {
+    /** Wait for the batch of sections PENDING, print its output, and
+     *  rethrow any error it ended with. */
+    private void printSections(Future<SectionOutput> pending) {
+        SectionOutput result;
         try {
-            String rotName = _config.next();
-            String rotSet = _config.next();
-            String perms = "";
-            while (_config.hasNext("\\(.*\\)")) {
-                perms += _config.next();
+            result = pending.get();
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw error("interrupted");
+        } catch (ExecutionException excp) {
+            if (excp.getCause() instanceof Error) {
+                throw (Error) excp.getCause();
             }
-            ArrayList<String> reFormatPerms = new ArrayList<String>(
-                    Arrays.asList(perms.split("")));
-            perms = "";
-            for (String s: reFormatPerms) {
-                if (s.equals(")")) {
-                    perms += s + " ";
-                } else {
-                    perms += s;
+            throw new IllegalStateException(excp.getCause());
+        }
+        _output.print(result.text);
+        if (result.error != null) {
+            throw result.error;
+        }
+    }
+
+    /** The output of a batch of sections. */
+    private static class SectionOutput {
+        /** Processed text, as it would be printed. */
+        private final StringBuilder text = new StringBuilder();
+        /** The error that ended the batch, or null. */
+        private RuntimeException error;
+    }
+
+    /** Like process, but reading _inChannel and writing _outChannel
+     *  through fixed-size buffers.  Message characters are converted and
+     *  written as they are decoded, so a line is never held in memory as
+     *  a whole and arbitrarily long lines are handled in bounded space. */
+    private void processStream() {
+        Machine m = readConfig();
+        GroupedOutput out =
+            new GroupedOutput(_outChannel, Charset.defaultCharset(),
+                              m.alphabet(), GROUP_SIZE);
+        LineParser parser = new LineParser(m.alphabet(), STREAM_BLOCK_SIZE,
+                                           new LineParser.Handler() {
+                @Override
+                public void settings(String line) {
+                    configure(m, line);
                 }
+
+                @Override
+                public void message(int[] chars, int len) {
+                    m.convert(chars, 0, len);
+                    out.append(chars, 0, len);
+                }
+
+                @Override
+                public void blankLine() {
+                    out.write(" ");
+                    out.endLine();
+                }
+
+                @Override
+                public void endLine() {
+                    out.endLine();
+                }
+            });
+        try {
+            parser.parse(_inChannel);
+        } catch (IOException excp) {
+            throw error("could not read input: %s", excp.getMessage());
+        } finally {
+            out.flush();
+        }
+    }
+
+    /** Like processStream, but reading, converting and writing on
+     *  separate threads (see Pipeline). */
+    private void processPipeline() {
+        Machine m = readConfig();
+        GroupedOutput out =
+            new GroupedOutput(_outChannel, Charset.defaultCharset(),
+                              m.alphabet(), GROUP_SIZE);
+        try {
+            new Pipeline(this, m, _inChannel, out).run();
+        } finally {
+            out.flush();
+        }
+    }
+
+    /** Convert all of _inChannel, as raw bytes, with a machine of the
+     *  byte configuration _config set according to the byte settings line
+     *  _binary (see configureBytes), writing the result to _outChannel.
+     *  There are no lines or settings in the input. */
+    private void processBinary() {
+        Machine m = readConfig();
+        if (!m.alphabet().isBytes()) {
+            throw error("binary mode needs a byte configuration");
+        }
+        configureBytes(m, _binary);
+        ByteMachine bytes = new ByteMachine(m);
+        ByteBuffer buf = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+        try {
+            while (_inChannel.read(buf) >= 0) {
+                buf.flip();
+                bytes.convert(buf);
+                buf.flip();
+                EngineStats.wrote(buf.remaining());
+                while (buf.hasRemaining()) {
+                    _outChannel.write(buf);
+                }
+                buf.clear();
             }
-            if (rotSet.charAt(0) == 'M') {
-                return new MovingRotor(rotName,
-                        new Permutation(perms, alph), rotSet.substring(1));
-            } else if (rotSet.charAt(0) == 'N') {
-                return new FixedRotor(rotName, new Permutation(perms, alph));
-            } else {
-                return new Reflector(rotName, new Permutation(perms, alph));
+        } catch (IOException excp) {
+            throw error("could not convert input: %s", excp.getMessage());
+        }
+    }
+
+    /** Return an Enigma machine configured from the contents of configuration
+     *  file _config, or from its compiled form if --cache was given and
+     *  that is up to date. */
+    Machine readConfig() {
+        EngineEvents.ConfigLoad event = EngineEvents.startConfigLoad();
+        long start = System.nanoTime();
+        Path cachePath = null;
+        Machine config = null;
+        if (_cache && _configBytes != null) {
+            cachePath = Paths.get(_configName + CACHE_SUFFIX);
+            config = ConfigCache.load(cachePath, _configBytes);
+        }
+        boolean cached = config != null;
+        if (config == null) {
+            config = new ConfigParser(_config).parse();
+            if (cachePath != null) {
+                ConfigCache.store(cachePath, _configBytes, config);
+            }
+        }
+        EngineStats.configLoaded(System.nanoTime() - start, cached);
+        EngineEvents.endConfigLoad(event, cached, config.allRotors().size());
+        alph = config.alphabet();
+        allRot = config.numRotors();
+        movRot = config.numPawls();
+        allRotors.addAll(config.allRotors());
+        if (_verbose) {
+            _trace = new TraceWriter(alph, allRot,
+                                     new OutputStreamWriter(System.err));
+        }
+        return new Machine(alph, allRot, movRot, allRotors, _trace);
+    }
+
+    /** Set M according to the settings line LINE, which starts with
+     *  "* ", checking that its first rotor is a reflector and that no rotor
+     *  is used twice.  The result of each valid line is kept in _setups,
+     *  so a line seen recently is set up by restoring it. */
+    void configure(Machine m, String line) {
+        if (!line.startsWith("* ")) {
+            throw new EnigmaException("bad settings line");
+        }
+        EngineEvents.SettingsChange event =
+            EngineEvents.startSettingsChange();
+        long start = System.nanoTime();
+        Machine.Setup setup;
+        synchronized (_setups) {
+            setup = _setups.get(line);
+        }
+        boolean cached = setup != null;
+        if (cached) {
+            m.restore(setup);
+        } else {
+            setUp(m, line.substring(2));
+            checkRotors(m);
+            setup = m.setup();
+            synchronized (_setups) {
+                _setups.put(line, setup);
+            }
+        }
+        EngineStats.setUp(System.nanoTime() - start, cached);
+        EngineEvents.endSettingsChange(event, cached, m.numRotors());
+    }
+
+    /** Check that the first rotor of M is a reflector and that no rotor
+     *  is used twice. */
+    private void checkRotors(Machine m) {
+        if (!m.getRotor(0).reflecting()) {
+            throw new EnigmaException("first rotor must be the reflector");
+        }
+        Set<String> names = new HashSet<>();
+        for (int index = 0; index < m.numRotors(); index++) {
+            if (!names.add(m.getRotor(index).name())) {
+                throw new EnigmaException("duplicated rotors");
+            }
+        }
+    }
+
+    /** Set M, over the alphabet of a byte configuration, according to
+     *  the byte settings line LINE.  This is like a settings line for
+     *  configure, except that the rotor settings are written as two
+     *  hexadecimal digits per rotor and the plugboard cycles as in a byte
+     *  configuration, as in "* B I II III 00ff10 (4161)". */
+    void configureBytes(Machine m, String line) {
+        String[] words = line.trim().split("\\s+");
+        if (words.length < allRot + 2 || !words[0].equals("*")) {
+            throw new EnigmaException("wrong number of rotors");
+        }
+        m.insertRotors(Arrays.copyOfRange(words, 1, allRot + 1));
+        int checkMRot = 0;
+        for (int count = 0; count < allRot; count++) {
+            if (m.getRotor(count).rotates()) {
+                checkMRot++;
+            }
+        }
+        if (checkMRot != movRot) {
+            throw new EnigmaException("wrong number of moving rotors");
+        }
+        String setting = words[allRot + 1];
+        if (setting.length() != 2 * (allRot - 1)) {
+            throw new EnigmaException("wrong rotor configurations");
+        }
+        int[] positions = new int[allRot];
+        for (int index = 1; index < allRot; index++) {
+            positions[index] = Alphabet.byteAt(setting, 2 * (index - 1));
+            if (positions[index] < 0) {
+                throw new EnigmaException("wrong rotor configurations");
             }
-        } catch (NoSuchElementException excp) {
-            throw error("bad rotor description");
         }
+        m.setPositions(positions);
+        int[] plugboard = Permutation.identity(alph.size());
+        for (int index = allRot + 2; index < words.length; index++) {
+            Permutation.addByteCycles(words[index], 0, words[index].length(),
+                                      plugboard);
+        }
+        m.setPlugboard(new Permutation(plugboard, alph));
+        checkRotors(m);
     }
 
     /** Set M according to the specification given on SETTINGS,
      *  which must have the format specified in the assignment. */
-    private void setUp(Machine M, String settings) {
+    void setUp(Machine M, String settings) {
         ArrayList<String> setList = new ArrayList<String>(
                 Arrays.asList(settings.split(" ")));
+        if (allRot >= setList.size()) {
+            throw new EnigmaException("wrong number of rotors");
+        }
         String[] curRotors = new String[allRot];
         for (int index = 0; index < curRotors.length; index++) {
             curRotors[index] = setList.get(index);
         }
-        if (allRot >= setList.size()) {
-            throw new EnigmaException("wrong number of rotors");
-        }
         String curSetting = setList.get(allRot);
+        if (curSetting.length() != allRot - 1) {
+            throw new EnigmaException("wrong rotor configurations");
+        }
         char[] checkStr = curSetting.toCharArray();
         for (char c: checkStr) {
             if (!alph.contains(c)) {
@@ -226,18 +611,152 @@ public final class Main {
         return _verbose;
     }
 
-    /** Print MSG in groups of five (except that the last group may
-     *  have fewer letters). */
-    private void printMessageLine(String msg) {
-        while (true) {
-            if (msg.length() > 5) {
-                _output.print(msg.substring(0, 5) + " ");
-                msg = msg.substring(5);
-            } else {
-                _output.println(msg);
-                break;
+    /** Append MSG to OUT in groups of GROUP_SIZE characters, ending
+     *  with a line separator, as printMessageLine writes it. */
+    static void appendMessageLine(StringBuilder out, String msg) {
+        int index = 0;
+        for (; msg.length() - index > GROUP_SIZE; index += GROUP_SIZE) {
+            out.append(msg, index, index + GROUP_SIZE).append(' ');
+        }
+        out.append(msg, index, msg.length()).append(System.lineSeparator());
+    }
+
+    /** If --keystream was given, arrange for the messages after the
+     *  settings line just applied to M to be converted from a
+     *  precomputed keystream (see Keystream).  The table is mapped from
+     *  the directory named by the configuration file and KEYSTREAM_SUFFIX
+     *  if it is there and up to date.  Otherwise M converts the messages,
+     *  and once the section is long enough to repay a table (see
+     *  considerKeystream) one is built in the background; printMessageLine
+     *  switches to it when it is ready. */
+    private void startKeystream(Machine m) {
+        _keystreamTable = null;
+        _keystreamBuild = null;
+        _keystreamOffset = 0;
+        _keystreamStart = null;
+        _keystreamEstimate = 0;
+        if (!_keystream || _verbose || _parallel || _configBytes == null) {
+            return;
+        }
+        String identity = Keystream.identity(_config, m);
+        CompletableFuture<Keystream> known = _keystreams.get(identity);
+        if (known != null) {
+            if (!known.isDone()) {
+                _keystreamBuild = known;
+            } else if (!known.isCompletedExceptionally()) {
+                _keystreamTable = known.join();
+            }
+            return;
+        }
+        _keystreamTable = Keystream.open(keystreamFile(identity), identity);
+        if (_keystreamTable != null) {
+            _keystreams.put(identity,
+                            CompletableFuture.completedFuture(_keystreamTable));
+        } else {
+            _keystreamIdentity = identity;
+            _keystreamStart = Keystream.snapshot(m);
+        }
+    }
+
+    /** Return the keystream file for the setup identified by
+     *  IDENTITY. */
+    private Path keystreamFile(String identity) {
+        return Paths.get(_configName + KEYSTREAM_SUFFIX,
+                         Keystream.fileName(identity));
+    }
+
+    /** Start building the keystream for the current settings line if its
+     *  section has become long enough to repay it: at least
+     *  MIN_KEYSTREAM_CHARS characters, and at least as many as the table
+     *  would have rows, judged from Keystream.estimateBytes.  Tables too
+     *  large to build are given up. */
+    private void considerKeystream() {
+        if (_keystreamOffset < MIN_KEYSTREAM_CHARS) {
+            return;
+        }
+        if (_keystreamEstimate == 0) {
+            _keystreamEstimate =
+                Keystream.estimateBytes(_keystreamStart, _keystreamIdentity);
+        }
+        if (_keystreamEstimate < 0) {
+            _keystreamStart = null;
+            return;
+        }
+        if (_keystreamOffset
+            < _keystreamEstimate / _keystreamStart.alphabet().size()) {
+            return;
+        }
+        if (_keystreamBuilder == null) {
+            _keystreamBuilder = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "enigma-keystream");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        _keystreamBuild =
+            Keystream.buildInBackground(keystreamFile(_keystreamIdentity),
+                                        _keystreamStart, _keystreamIdentity,
+                                        _keystreamBuilder);
+        _keystreams.put(_keystreamIdentity, _keystreamBuild);
+        _keystreamStart = null;
+    }
+
+    /** Cancel any keystream builds still pending or running, so that the
+     *  run does not wait for tables it will not use.  A running build is
+     *  given a moment to remove its temporary file. */
+    private void stopKeystreamBuilds() {
+        if (_keystreamBuilder == null) {
+            return;
+        }
+        _keystreamBuilder.shutdownNow();
+        try {
+            _keystreamBuilder.awaitTermination(KEYSTREAM_STOP_MILLIS,
+                                               TimeUnit.MILLISECONDS);
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Convert the message line LINE, ignoring blanks, with M and
+     *  write the result to OUT.  The message goes from LINE to OUT as
+     *  alphabet indices in _indices, without forming a String. */
+    private void printMessageLine(Machine m, GroupedOutput out,
+                                  String line) {
+        if (_indices.length < line.length()) {
+            _indices = new int[Math.max(line.length(), 2 * _indices.length)];
+        }
+        Alphabet alpha = m.alphabet();
+        int len = 0;
+        for (int index = 0; index < line.length(); index++) {
+            char c = line.charAt(index);
+            if (c != ' ') {
+                _indices[len] = alpha.toInt(c);
+                len += 1;
             }
         }
+        if (_keystreamTable == null && _keystreamBuild != null
+            && _keystreamBuild.isDone()) {
+            if (!_keystreamBuild.isCompletedExceptionally()) {
+                _keystreamTable = _keystreamBuild.join();
+            }
+            _keystreamBuild = null;
+        }
+        if (_keystreamTable != null) {
+            for (int index = 0; index < len; index++) {
+                if (_indices[index] < 0) {
+                    _indices[index] = alpha.size() - 1;
+                }
+            }
+            _keystreamTable.convert(_keystreamOffset, _indices, 0, len);
+        } else {
+            m.convert(_indices, 0, len);
+        }
+        _keystreamOffset += len;
+        if (_keystreamStart != null) {
+            considerKeystream();
+        }
+        out.append(_indices, 0, len);
+        out.endLine();
     }
 
     /** Alphabet used in this machine. */
@@ -247,7 +766,25 @@ public final class Main {
     private Scanner _input;
 
     /** Source of machine configuration. */
-    private Scanner _config;
+    private String _config;
+
+    /** Contents of the configuration file, or null if _config did not
+     *  come from a file. */
+    private byte[] _configBytes;
+
+    /** Recently used valid settings lines and the machine setups they
+     *  produce, least recently used first. */
+    private final Map<String, Machine.Setup> _setups =
+        new LinkedHashMap<String, Machine.Setup>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<String, Machine.Setup> eldest) {
+                return size() > SETUP_CACHE_SIZE;
+            }
+        };
+
+    /** Name of the configuration file. */
+    private String _configName;
 
     /** File for encoded/decoded messages. */
     private PrintStream _output;
@@ -255,6 +792,125 @@ public final class Main {
     /** True if --verbose specified. */
     private static boolean _verbose;
 
+    /** Trace of the machine's operation when --verbose is specified,
+     *  and otherwise null. */
+    private TraceWriter _trace;
+
+    /** True if --parallel specified. */
+    private static boolean _parallel;
+
+    /** True if --sections specified: convert settings sections
+     *  concurrently (see processSections). */
+    private static boolean _sections;
+
+    /** Minimum number of characters of input in a batch of sections
+     *  handed to one thread. */
+    private static final int SECTION_BATCH = 1 << 16;
+
+    /** Number of batches per thread that may await output. */
+    private static final int SECTION_WINDOW = 4;
+
+    /** Number of characters in each group of converted output. */
+    static final int GROUP_SIZE = 5;
+
+    /** Initial size of _indices. */
+    private static final int INITIAL_LINE_SIZE = 256;
+
+    /** Number of settings lines whose setups are kept. */
+    private static final int SETUP_CACHE_SIZE = 1 << 13;
+
+    /** Number of keystreams kept mapped in _keystreams. */
+    private static final int KEYSTREAM_CACHE_SIZE = 16;
+
+    /** Fewest characters in a section for which a keystream is built. */
+    private static final long MIN_KEYSTREAM_CHARS = 1 << 16;
+
+    /** Longest wait, in milliseconds, for a cancelled keystream build to
+     *  clean up at exit. */
+    private static final long KEYSTREAM_STOP_MILLIS = 1000;
+
+    /** Sessions of a server (--serve) are evicted after this many
+     *  milliseconds unused. */
+    private static final long SESSION_IDLE_MILLIS = 10 * 60 * 1000;
+
+    /** The byte settings line given with --binary, or null if binary
+     *  mode was not requested. */
+    private static String _binary;
+
+    /** True if --stream specified. */
+    private static boolean _stream;
+
+    /** True if --pipeline specified. */
+    private static boolean _pipeline;
+
+    /** True if --cache option was given: keep a compiled copy of the
+     *  configuration next to it (see ConfigCache). */
+    private static boolean _cache;
+
+    /** Appended to the configuration file name to name its cache. */
+    static final String CACHE_SUFFIX = ".cache";
+
+    /** True if --keystream option was given: convert messages from
+     *  precomputed keystream files (see startKeystream). */
+    private static boolean _keystream;
+
+    /** Appended to the configuration file name to name the directory of
+     *  its keystream files. */
+    static final String KEYSTREAM_SUFFIX = ".keystream";
+
+    /** Source of input messages when streaming. */
+    private ReadableByteChannel _inChannel;
+
+    /** Destination of processed messages when streaming. */
+    private WritableByteChannel _outChannel;
+
+    /** Size in bytes of the streaming input buffer. */
+    private static final int STREAM_BUFFER_SIZE = 1 << 20;
+
+    /** Largest number of message characters converted as a block when
+     *  streaming. */
+    private static final int STREAM_BLOCK_SIZE = STREAM_BUFFER_SIZE / 8;
+
+    /** Message characters of the current line, as alphabet indices;
+     *  grown as needed. */
+    private int[] _indices = new int[INITIAL_LINE_SIZE];
+
+    /** The keystream for the current settings, or null. */
+    private Keystream _keystreamTable;
+
+    /** The keystream for the current settings being built, or null. */
+    private CompletableFuture<Keystream> _keystreamBuild;
+
+    /** Number of characters converted since the last settings line. */
+    private long _keystreamOffset;
+
+    /** The text identifying the current setup, while its keystream may
+     *  yet be built. */
+    private String _keystreamIdentity;
+
+    /** A copy of the machine at the current settings line, while its
+     *  keystream may yet be built, and otherwise null. */
+    private Machine _keystreamStart;
+
+    /** Keystream.estimateBytes for the current setup, or 0 if not yet
+     *  computed. */
+    private long _keystreamEstimate;
+
+    /** Recently used keystreams, mapped or being built in this run, by
+     *  identity, least recently used first. */
+    private final Map<String, CompletableFuture<Keystream>> _keystreams =
+        new LinkedHashMap<String, CompletableFuture<Keystream>>(16, 0.75f,
+                                                               true) {
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<String, CompletableFuture<Keystream>> eldest) {
+                return size() > KEYSTREAM_CACHE_SIZE;
+            }
+        };
+
+    /** Builds keystreams in the background; created when first needed. */
+    private ExecutorService _keystreamBuilder;
+
     /** An ArrayList containing all possible rotors. */
     private ArrayList<Rotor> allRotors = new ArrayList<Rotor>();
 
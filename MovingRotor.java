@@ -15,6 +15,13 @@ class MovingRotor extends Rotor {
     MovingRotor(String name, Permutation perm, String notches) {
         super(name, perm);
         _notches = notches;
+        _notchAt = new boolean[perm.size()];
+        for (int index = 0; index < notches.length(); index++) {
+            int p = perm.alphabet().toInt(notches.charAt(index));
+            if (p >= 0) {
+                _notchAt[p] = true;
+            }
+        }
     }
 
     @Override
@@ -32,7 +39,15 @@ class MovingRotor extends Rotor {
         return _notches;
     }
 
+    @Override
+    boolean atNotch(int posn) {
+        return _notchAt[posn];
+    }
+
     /** The notches of this rotor in a form of String ie. "AB". */
     private String _notches;
 
+    /** _notchAt[P] is true iff I have a notch at setting P. */
+    private final boolean[] _notchAt;
+
 }
@@ -1,5 +1,7 @@
 package enigma;
 
+import java.util.Arrays;
+
 import static enigma.EnigmaException.*;
 
 /** Represents a permutation of a range of integers starting at 0 corresponding
@@ -15,66 +17,125 @@ class Permutation {
      *  Whitespace is ignored. */
     Permutation(String cycles, Alphabet alphabet) {
         _alphabet = alphabet;
-        perm = new char[_alphabet.size()];
-        char[] cyclesArray = cycles.toCharArray();
-        if (cyclesArray.length > 0) {
-            Character leftParenthesis = '(';
-            Character rightParenthesis = ')';
-            char temp = cyclesArray[1];
-            int leftParCount = 0;
-            int rightParCount = 0;
-            for (Character c: cyclesArray) {
-                if (c == leftParenthesis) {
-                    leftParCount++;
-                } else if (c == rightParenthesis) {
-                    rightParCount++;
-                }
+        _forward = identity(alphabet.size());
+        addCycles(cycles, 0, cycles.length(), alphabet, _forward);
+        _inverse = invertTable(_forward);
+    }
+
+    /** A Permutation of the indices of ALPHABET in which K maps to
+     *  FORWARD[K].  FORWARD becomes part of this Permutation and must not
+     *  be modified afterwards. */
+    Permutation(int[] forward, Alphabet alphabet) {
+        if (forward.length != alphabet.size()) {
+            throw new EnigmaException("permutation does not match alphabet");
+        }
+        _alphabet = alphabet;
+        _forward = forward;
+        _inverse = invertTable(_forward);
+    }
+
+    /** Return the table of the identity permutation of SIZE indices. */
+    static int[] identity(int size) {
+        int[] result = new int[size];
+        for (int index = 0; index < size; index++) {
+            result[index] = index;
+        }
+        return result;
+    }
+
+    /** Add the cycles given in TEXT[FROM .. TO-1], in the form
+     *  "(cccc) (cc) ..." with characters from ALPHABET, to the
+     *  permutation table FORWARD.  Whitespace is ignored. */
+    static void addCycles(CharSequence text, int from, int to,
+                          Alphabet alphabet, int[] forward) {
+        parseCycles(text, from, to, 1, (chars, index, end) -> {
+            int result = alphabet.toInt(chars.charAt(index));
+            if (result < 0) {
+                throw error("character %c not in alphabet",
+                            chars.charAt(index));
             }
-            if (leftParCount != rightParCount) {
-                throw new EnigmaException("incomplete cycles");
+            return result;
+        }, forward);
+    }
+
+    /** Add the cycles given in TEXT[FROM .. TO-1], in the form
+     *  "(hhhh) (hh) ..." where each hh is a byte value written as two
+     *  hexadecimal digits, to the permutation table FORWARD, which is over
+     *  the alphabet of a byte configuration.  Whitespace is ignored. */
+    static void addByteCycles(CharSequence text, int from, int to,
+                              int[] forward) {
+        parseCycles(text, from, to, 2, (chars, index, end) -> {
+            int result = index + 1 < end ? Alphabet.byteAt(chars, index) : -1;
+            if (result < 0) {
+                throw error("bad byte in cycles");
             }
-            for (int index = 1; index < cyclesArray.length - 1; index++) {
-                if (((Character) cyclesArray[index]).equals(leftParenthesis)) {
-                    temp = cyclesArray[index + 1];
-                } else if (
-                        ((Character)
-                                cyclesArray[index + 1]).equals(
-                                        rightParenthesis)) {
-                    perm[_alphabet.toInt(cyclesArray[index])] = temp;
-                    index += 2;
+            return result;
+        }, forward);
+    }
+
+    /** Add the cycles given in TEXT[FROM .. TO-1] to the permutation
+     *  table FORWARD, where each symbol in a cycle is WIDTH characters
+     *  long and is read by SYMBOLS.  Whitespace between symbols is
+     *  ignored. */
+    private static void parseCycles(CharSequence text, int from, int to,
+                                    int width, SymbolReader symbols,
+                                    int[] forward) {
+        int first = -1;
+        int prev = -1;
+        boolean open = false;
+        for (int index = from; index < to; index++) {
+            char c = text.charAt(index);
+            if (c == '(') {
+                if (open) {
+                    throw new EnigmaException("incomplete cycles");
+                }
+                open = true;
+                first = prev = -1;
+            } else if (c == ')') {
+                if (!open) {
+                    throw new EnigmaException("incomplete cycles");
+                }
+                if (first >= 0) {
+                    forward[prev] = first;
+                }
+                open = false;
+            } else if (open && !Character.isWhitespace(c)) {
+                int cur = symbols.read(text, index, to);
+                index += width - 1;
+                if (first < 0) {
+                    first = cur;
                 } else {
-                    perm[_alphabet.toInt(cyclesArray[index])] =
-                            cyclesArray[index + 1];
+                    forward[prev] = cur;
                 }
+                prev = cur;
             }
         }
-        for (int index = 0; index < _alphabet.size(); index++) {
-            if (perm[index] == 0) {
-                perm[index] = _alphabet.toChar(index);
-            }
+        if (open) {
+            throw new EnigmaException("incomplete cycles");
         }
     }
 
-    /** Add the cycle c0->c1->...->cm->c0 to the permutation, where CYCLE is
-     *  c0c1...cm. */
-    private void addCycle(String cycle) {
-        char[] cycleArray = cycle.toCharArray();
-        Character leftParenthesis = '(';
-        Character rightParenthesis = ')';
-        char temp = cycleArray[1];
-        for (int index = 1; index < cycleArray.length - 1; index++) {
-            if (((Character) cycleArray[index]).equals(leftParenthesis)) {
-                temp = cycleArray[index + 1];
-            } else if ((
-                    (Character) cycleArray[index + 1]).equals(
-                            rightParenthesis)) {
-                perm[_alphabet.toInt(cycleArray[index])] = temp;
-                index += 2;
-            } else {
-                perm[_alphabet.toInt(cycleArray[index])]
-                        = cycleArray[index + 1];
+    /** Reads one symbol of cycle notation. */
+    private interface SymbolReader {
+        /** Return the index of the symbol starting at TEXT[INDEX], where
+         *  the cycles end at TO, or throw an EnigmaException if there is
+         *  no valid symbol there. */
+        int read(CharSequence text, int index, int to);
+    }
+
+    /** Return the inverse of the index table FORWARD, checking that it
+     *  is in fact a permutation. */
+    private static int[] invertTable(int[] forward) {
+        int[] inverse = new int[forward.length];
+        Arrays.fill(inverse, -1);
+        for (int index = 0; index < forward.length; index++) {
+            if (forward[index] < 0 || forward[index] >= forward.length
+                || inverse[forward[index]] >= 0) {
+                throw new EnigmaException("character repeated in cycles");
             }
+            inverse[forward[index]] = index;
         }
+        return inverse;
     }
 
     /** Return the value of P modulo the size of this permutation. */
@@ -88,38 +149,42 @@ class Permutation {
 
     /** Returns the size of the alphabet I permute. */
     int size() {
-        return perm.length;
+        return _forward.length;
     }
 
     /** Return the result of applying this permutation to P modulo the
      *  alphabet size. */
     int permute(int p) {
-        p = wrap(p);
-        char temp = perm[p];
-        int result = _alphabet.toInt(temp);
-        return result;
+        return _forward[wrap(p)];
     }
 
     /** Return the result of applying the inverse of this permutation
      *  to  C modulo the alphabet size. */
     int invert(int c) {
-        c = wrap(c);
-        char temp = _alphabet.toChar(c);
-        int result = new String(perm).indexOf(temp);
-        return result;
+        return _inverse[wrap(c)];
     }
 
     /** Return the result of applying this permutation to the index of P
      *  in ALPHABET, and converting the result to a character of ALPHABET. */
     char permute(char p) {
-        int index = _alphabet.toInt(p);
-        return perm[index];
+        return _alphabet.toChar(_forward[_alphabet.toInt(p)]);
     }
 
     /** Return the result of applying the inverse of this permutation to C. */
     char invert(char c) {
-        int index = new String(perm).indexOf(c);
-        return _alphabet.toChar(index);
+        return _alphabet.toChar(_inverse[_alphabet.toInt(c)]);
+    }
+
+    /** Return the table of this permutation: entry K is the result of
+     *  permuting K.  The table is shared and must not be modified. */
+    int[] forwardTable() {
+        return _forward;
+    }
+
+    /** Return the table of the inverse of this permutation.  The table
+     *  is shared and must not be modified. */
+    int[] inverseTable() {
+        return _inverse;
     }
 
     /** Return the alphabet used to initialize this Permutation. */
@@ -130,9 +195,8 @@ class Permutation {
     /** Return true iff this permutation is a derangement (i.e., a
      *  permutation for which no value maps to itself). */
     boolean derangement() {
-        for (int index = 0; index < perm.length; index++) {
-            int temp = new String(perm).indexOf(_alphabet.toChar(index));
-            if (index == temp) {
+        for (int index = 0; index < _forward.length; index++) {
+            if (_forward[index] == index) {
                 return false;
             }
         }
@@ -142,6 +206,9 @@ class Permutation {
     /** Alphabet of this permutation. */
     private Alphabet _alphabet;
 
-    /** An array containing _alphabet in the order of the permutation. */
-    private char[] perm;
+    /** _forward[K] is the index that K maps to. */
+    private final int[] _forward;
+
+    /** _inverse[K] is the index that maps to K; the inverse of _forward. */
+    private final int[] _inverse;
 }
@@ -0,0 +1,261 @@
+package enigma;
+
+import java.io.IOException;
+
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.CancellationException;
+
+import static enigma.EnigmaException.*;
+
+/** The processing of a stream of settings and message lines (as for
+ *  Main.processStream) in three stages on their own threads, so that
+ *  reading, conversion and output overlap.  A parser thread splits the
+ *  input with a LineParser, exactly as Main.processStream does, into
+ *  records: settings lines, blocks of message characters as alphabet
+ *  indices, and blank lines.  A converter thread
+ *  applies the settings to a single machine and converts the blocks with
+ *  it, in input order.  The calling thread writes the results.  The
+ *  stages are joined by RingBuffers of preallocated records, so the
+ *  steady state allocates nothing, and a stage that gets RING_SIZE
+ *  records ahead waits for the next.  An error in either of the first
+ *  two stages travels down the pipeline as a record and is thrown by
+ *  the writer after the output that precedes it.
+ *  @author Jonny W.
+ */
+class Pipeline implements LineParser.Handler {
+
+    /** A pipeline reading IN, converting with M, configured by MAIN, and
+     *  writing to OUT. */
+    Pipeline(Main main, Machine m, ReadableByteChannel in,
+             GroupedOutput out) {
+        _main = main;
+        _machine = m;
+        _alphabet = m.alphabet();
+        _in = in;
+        _out = out;
+    }
+
+    /** Process all of my input, returning when the last of it has been
+     *  written. */
+    void run() {
+        Thread parser = new Thread(this::parse, "enigma-parser");
+        Thread converter = new Thread(this::convert, "enigma-converter");
+        parser.setDaemon(true);
+        converter.setDaemon(true);
+        parser.start();
+        converter.start();
+        try {
+            write();
+        } finally {
+            _parsed.close();
+            _converted.close();
+            try {
+                converter.join();
+            } catch (InterruptedException excp) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** The parser stage: split my input into records for the
+     *  converter. */
+    private void parse() {
+        try {
+            new LineParser(_alphabet, RECORD_SIZE, this).parse(_in);
+            _parsed.claim().kind = END;
+            _parsed.publish();
+        } catch (CancellationException excp) {
+            return;
+        } catch (IOException excp) {
+            fail(_parsed, error("could not read input: %s",
+                                excp.getMessage()));
+        } catch (RuntimeException | Error excp) {
+            fail(_parsed, excp);
+        }
+    }
+
+    @Override
+    public void settings(String line) {
+        Record settings = _parsed.claim();
+        settings.kind = SETTINGS;
+        settings.settings.setLength(0);
+        settings.settings.append(line);
+        _parsed.publish();
+    }
+
+    @Override
+    public void message(int[] chars, int len) {
+        if (_message != null) {
+            _parsed.publish();
+        }
+        _message = claimMessage();
+        System.arraycopy(chars, 0, _message.chars, 0, len);
+        _message.len = len;
+    }
+
+    @Override
+    public void blankLine() {
+        _parsed.claim().kind = BLANK;
+        _parsed.publish();
+    }
+
+    @Override
+    public void endLine() {
+        if (_message == null) {
+            _message = claimMessage();
+        }
+        _message.endsLine = true;
+        _parsed.publish();
+        _message = null;
+    }
+
+    /** Return a record claimed from _parsed for a block of message
+     *  characters, not yet ending a line. */
+    private Record claimMessage() {
+        Record result = _parsed.claim();
+        result.kind = MESSAGE;
+        result.len = 0;
+        result.endsLine = false;
+        return result;
+    }
+
+    /** The converter stage: configure my machine and convert message
+     *  blocks as the records from the parser say, passing the results to
+     *  the writer. */
+    private void convert() {
+        try {
+            while (true) {
+                Record in = _parsed.take();
+                if (in.kind == SETTINGS) {
+                    _main.configure(_machine, in.settings.toString());
+                    _parsed.release();
+                    continue;
+                }
+                Record out = _converted.claim();
+                out.kind = in.kind;
+                out.len = in.len;
+                out.endsLine = in.endsLine;
+                out.error = in.error;
+                in.error = null;
+                if (in.kind == MESSAGE) {
+                    System.arraycopy(in.chars, 0, out.chars, 0, in.len);
+                }
+                _parsed.release();
+                if (out.kind == MESSAGE) {
+                    _machine.convert(out.chars, 0, out.len);
+                }
+                _converted.publish();
+                if (out.kind == END || out.kind == ERROR) {
+                    return;
+                }
+            }
+        } catch (CancellationException excp) {
+            return;
+        } catch (RuntimeException | Error excp) {
+            fail(_converted, excp);
+        }
+    }
+
+    /** The writer stage: write the records from the converter to _out
+     *  until the end of the input, or throw the error that ended it. */
+    private void write() {
+        while (true) {
+            Record r = _converted.take();
+            switch (r.kind) {
+            case BLANK:
+                _out.write(" ");
+                _out.endLine();
+                break;
+            case MESSAGE:
+                _out.append(r.chars, 0, r.len);
+                if (r.endsLine) {
+                    _out.endLine();
+                }
+                break;
+            case ERROR:
+                Throwable excp = r.error;
+                r.error = null;
+                _converted.release();
+                if (excp instanceof Error) {
+                    throw (Error) excp;
+                }
+                throw (RuntimeException) excp;
+            default:
+                _converted.release();
+                return;
+            }
+            _converted.release();
+        }
+    }
+
+    /** Send EXCP down the pipeline from RING, as the last record its
+     *  producer sends.  Replaces any record claimed but not published. */
+    private static void fail(RingBuffer<Record> ring, Throwable excp) {
+        try {
+            Record r = ring.claim();
+            r.kind = ERROR;
+            r.error = excp;
+            ring.publish();
+        } catch (CancellationException cancelled) {
+            return;
+        }
+    }
+
+    /** An item passed between stages. */
+    private static class Record {
+        /** What this record is: SETTINGS, MESSAGE, BLANK, ERROR or
+         *  END. */
+        private int kind;
+        /** For SETTINGS, the settings line. */
+        private final StringBuilder settings = new StringBuilder();
+        /** For MESSAGE, the characters as alphabet indices, in
+         *  chars[0 .. len-1]. */
+        private final int[] chars = new int[RECORD_SIZE];
+        /** Number of characters in chars. */
+        private int len;
+        /** For MESSAGE, true iff the message line ends after chars. */
+        private boolean endsLine;
+        /** For ERROR, what went wrong. */
+        private Throwable error;
+    }
+
+    /** Values of Record.kind: a settings line, message characters, an
+     *  empty line, an error, and the end of the input. */
+    private static final int SETTINGS = 0, MESSAGE = 1, BLANK = 2,
+        ERROR = 3, END = 4;
+
+    /** Number of records in each ring. */
+    private static final int RING_SIZE = 16;
+
+    /** Largest number of message characters in a record. */
+    private static final int RECORD_SIZE = 1 << 13;
+
+    /** Applies settings lines. */
+    private final Main _main;
+
+    /** The machine converting messages, used only by the converter. */
+    private final Machine _machine;
+
+    /** The alphabet of _machine. */
+    private final Alphabet _alphabet;
+
+    /** Source of input. */
+    private final ReadableByteChannel _in;
+
+    /** Destination of output, used only by the writer. */
+    private final GroupedOutput _out;
+
+    /** Records from the parser to the converter. */
+    private final RingBuffer<Record> _parsed =
+        new RingBuffer<>(RING_SIZE, Record::new);
+
+    /** Records from the converter to the writer. */
+    private final RingBuffer<Record> _converted =
+        new RingBuffer<>(RING_SIZE, Record::new);
+
+    /** The last record of message characters claimed by the parser,
+     *  which is published once the parser knows whether it ends its line,
+     *  or null. */
+    private Record _message;
+
+}
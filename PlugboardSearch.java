@@ -0,0 +1,671 @@
+package enigma;
+
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Scanner;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static enigma.EnigmaException.*;
+
+/** A ciphertext-only search for the plugboard of a machine whose rotors
+ *  and positions are known.  Each trial plugboard is scored by how much
+ *  its decryption looks like the language of a sample text, using tables
+ *  of the logarithms of bigram and trigram frequencies (Ngrams).  The
+ *  search hill-climbs over plugboard changes, one pair at a time: first
+ *  on bigram scores, which are smoother far from the answer, and then on
+ *  trigram scores.  Only the letters a change affects are decrypted again
+ *  and only the n-grams covering them rescored.  Independent climbs from
+ *  random plugboards run on every thread of a fork/join pool (an island
+ *  model), sharing only the best result.  Run as
+ *
+ *      java enigma.PlugboardSearch CONFIG CIPHERTEXT SETTINGS SAMPLE
+ *                                  [PAIRS [RESTARTS]]
+ *
+ *  to print the best settings line, with its plugboard of at most PAIRS
+ *  (default 10) pairs, for the ciphertext in file CIPHERTEXT, where the
+ *  settings line SETTINGS (whose plugboard is ignored) gives the rotors
+ *  and positions under the configuration in file CONFIG, and the file
+ *  SAMPLE holds text in the expected language.  Then follows the
+ *  decryption and, on the standard error, the search rate.
+ *  @author Jonny W.
+ */
+class PlugboardSearch {
+
+    /** Print the best plugboard for the files and settings in ARGS (see
+     *  above). */
+    public static void main(String... args) {
+        try {
+            if (args.length < 4 || args.length > 6) {
+                throw error("Usage: java enigma.PlugboardSearch CONFIG "
+                            + "CIPHERTEXT SETTINGS SAMPLE [PAIRS "
+                            + "[RESTARTS]]");
+            }
+            Main main = new Main(new String(readFile(args[0])),
+                                 new Scanner(""), System.out);
+            Machine m = main.readConfig();
+            String settings = args[2].trim();
+            int rotorsEnd = settings.indexOf('(');
+            String rotors = rotorsEnd < 0 ? settings
+                : settings.substring(0, rotorsEnd).trim();
+            main.configure(m, rotors);
+            Ngrams ngrams =
+                new Ngrams(m.alphabet(), new String(readFile(args[3])));
+            int pairs = args.length > 4 ? number(args[4]) : 10;
+            int restarts =
+                args.length > 5 ? number(args[5]) : DEFAULT_RESTARTS;
+            PlugboardSearch search =
+                new PlugboardSearch(m, new String(readFile(args[1])),
+                                    ngrams, pairs);
+            Result best = search.search(ForkJoinPool.commonPool(), restarts,
+                                        System.nanoTime());
+            String cycles = best.cycles();
+            System.out.println(cycles.isEmpty() ? rotors
+                               : rotors + " " + cycles);
+            System.out.println(best.plaintext());
+            System.err.printf("%d restarts, %d changes tried in %.3f s: "
+                              + "%.0f changes/s%n", restarts,
+                              search.changesTried(),
+                              search.elapsedNanos() * 1e-9,
+                              search.changesTried() * 1e9
+                              / Math.max(1, search.elapsedNanos()));
+            return;
+        } catch (EnigmaException excp) {
+            System.err.printf("Error: %s%n", excp.getMessage());
+        }
+        System.exit(1);
+    }
+
+    /** Return the non-negative integer in TEXT. */
+    private static int number(String text) {
+        try {
+            int result = Integer.parseInt(text);
+            if (result >= 0) {
+                return result;
+            }
+        } catch (NumberFormatException excp) {
+            /* Reported below. */
+        }
+        throw error("bad number: %s", text);
+    }
+
+    /** Return the contents of the file named NAME. */
+    private static byte[] readFile(String name) {
+        try {
+            return Files.readAllBytes(Paths.get(name));
+        } catch (IOException | InvalidPathException excp) {
+            throw error("could not open %s", name);
+        }
+    }
+
+    /** A search for a plugboard of at most PAIRS pairs that, with the
+     *  rotors and current settings of M, best decrypts CIPHERTEXT by the
+     *  scores of NGRAMS.  Characters of CIPHERTEXT outside the alphabet of
+     *  M are ignored.  M is not changed. */
+    PlugboardSearch(Machine m, String ciphertext, Ngrams ngrams,
+                    int pairs) {
+        _alphabet = m.alphabet();
+        _size = _alphabet.size();
+        if (ngrams.size() != _size) {
+            throw error("n-gram tables do not match the alphabet");
+        }
+        if (pairs > _size / 2) {
+            throw error("too many plugboard pairs: %d", pairs);
+        }
+        _ngrams = ngrams;
+        _pairs = pairs;
+        int[] cipher = new int[ciphertext.length()];
+        int len = 0;
+        for (int index = 0; index < ciphertext.length(); index++) {
+            int c = _alphabet.toInt(ciphertext.charAt(index));
+            if (c >= 0) {
+                cipher[len++] = c;
+            }
+        }
+        if (len < 3) {
+            throw error("ciphertext too short");
+        }
+        _cipher = Arrays.copyOf(cipher, len);
+        _core = core(m, len);
+        _byLetter = new int[_size][];
+        int[] counts = new int[_size];
+        for (int c : _cipher) {
+            counts[c] += 1;
+        }
+        for (int c = 0; c < _size; c++) {
+            _byLetter[c] = new int[counts[c]];
+            counts[c] = 0;
+        }
+        for (int i = 0; i < len; i++) {
+            _byLetter[_cipher[i]][counts[_cipher[i]]++] = i;
+        }
+    }
+
+    /** Return the substitution made by the rotors of M, without its
+     *  plugboard, at each of the first LEN characters from its current
+     *  settings: entry I * size + X is the image of X at character I. */
+    private int[] core(Machine m, int len) {
+        MachineSpec spec = m.spec();
+        int[] pos = new int[spec.numRotors()];
+        for (int k = 1; k < pos.length; k++) {
+            pos[k] = m.setting(k);
+        }
+        int fast = pos.length - 1;
+        int[] inner = new int[_size];
+        int[] result = new int[len * _size];
+        spec.fuse(pos, inner);
+        for (int i = 0; i < len; i++) {
+            if (spec.step(pos)) {
+                spec.fuse(pos, inner);
+            }
+            int p = pos[fast];
+            for (int x = 0; x < _size; x++) {
+                result[i * _size + x] =
+                    spec.backward(fast, p, inner[spec.forward(fast, p, x)]);
+            }
+        }
+        return result;
+    }
+
+    /** Run RESTARTS climbs, divided among the threads of POOL with random
+     *  starts derived from SEED, and return the best result. */
+    Result search(ForkJoinPool pool, int restarts, long seed) {
+        long start = System.nanoTime();
+        int islands = Math.max(1, Math.min(restarts, pool.getParallelism()));
+        SplittableRandom root = new SplittableRandom(seed);
+        AtomicInteger remaining = new AtomicInteger(restarts);
+        List<RecursiveAction> tasks = new ArrayList<>();
+        for (int island = 0; island < islands; island++) {
+            SplittableRandom random = root.split();
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    Climber climber = new Climber(random);
+                    while (remaining.getAndDecrement() > 0) {
+                        offer(climber.climb());
+                    }
+                }
+            });
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+        _elapsed += System.nanoTime() - start;
+        Result best = _best.get();
+        if (best == null) {
+            best = new Climber(root).result(Permutation.identity(_size));
+        }
+        return best;
+    }
+
+    /** Return the number of plugboard changes scored so far. */
+    long changesTried() {
+        return _tried.get();
+    }
+
+    /** Return the time spent searching, in nanoseconds. */
+    long elapsedNanos() {
+        return _elapsed;
+    }
+
+    /** Make R the best result if it beats the current one. */
+    private void offer(Result r) {
+        while (true) {
+            Result best = _best.get();
+            if (best != null && best._score >= r._score) {
+                return;
+            }
+            if (_best.compareAndSet(best, r)) {
+                return;
+            }
+        }
+    }
+
+    /** Tables of the logarithms of the frequencies of bigrams and
+     *  trigrams in a sample text, as fixed-point integers so that scores
+     *  can be updated incrementally without rounding drift.  The tables
+     *  are flat: the bigram AB is at A * size + B and the trigram ABC at
+     *  (A * size + B) * size + C, for alphabet indices A, B and C. */
+    static class Ngrams {
+
+        /** Tables for ALPHA from the SAMPLE text.  Characters of SAMPLE
+         *  not in ALPHA are skipped, after trying their upper-case
+         *  forms. */
+        Ngrams(Alphabet alpha, String sample) {
+            _size = alpha.size();
+            if ((long) _size * _size * _size > MAX_TRIGRAMS) {
+                throw error("alphabet too large for trigram tables");
+            }
+            int[] text = new int[sample.length()];
+            int len = 0;
+            for (int index = 0; index < sample.length(); index++) {
+                char c = sample.charAt(index);
+                int k = alpha.toInt(c);
+                if (k < 0) {
+                    k = alpha.toInt(Character.toUpperCase(c));
+                }
+                if (k >= 0) {
+                    text[len++] = k;
+                }
+            }
+            if (len < 3) {
+                throw error("sample text too short");
+            }
+            long[] bigrams = new long[_size * _size];
+            long[] trigrams = new long[_size * _size * _size];
+            for (int i = 0; i + 1 < len; i++) {
+                bigrams[text[i] * _size + text[i + 1]] += 1;
+                if (i + 2 < len) {
+                    trigrams[(text[i] * _size + text[i + 1]) * _size
+                             + text[i + 2]] += 1;
+                }
+            }
+            _bigrams = logs(bigrams, len - 1);
+            _trigrams = logs(trigrams, len - 2);
+        }
+
+        /** Return the size of the alphabet. */
+        int size() {
+            return _size;
+        }
+
+        /** Return the scores of COUNTS out of TOTAL. */
+        private static int[] logs(long[] counts, long total) {
+            int[] result = new int[counts.length];
+            for (int index = 0; index < counts.length; index++) {
+                double p = Math.max(counts[index], UNSEEN) / total;
+                result[index] = (int) Math.round(SCALE * Math.log(p));
+            }
+            return result;
+        }
+
+        /** Score of the bigram AB is _bigrams[A * size + B]. */
+        private final int[] _bigrams;
+
+        /** Score of the trigram ABC is _trigrams[(A * size + B) * size +
+         *  C]. */
+        private final int[] _trigrams;
+
+        /** Size of the alphabet. */
+        private final int _size;
+    }
+
+    /** The best plugboard found and its decryption. */
+    class Result {
+
+        /** A result with plugboard PLUG (as a table) decrypting to
+         *  PLAIN, scored SCORE on trigrams. */
+        Result(int[] plug, int[] plain, long score) {
+            _plug = plug;
+            _plain = plain;
+            _score = score;
+        }
+
+        /** Return my plugboard in cycle notation. */
+        String cycles() {
+            StringBuilder result = new StringBuilder();
+            for (int c = 0; c < _size; c++) {
+                if (_plug[c] > c) {
+                    if (result.length() > 0) {
+                        result.append(' ');
+                    }
+                    result.append('(').append(_alphabet.toChar(c))
+                        .append(_alphabet.toChar(_plug[c])).append(')');
+                }
+            }
+            return result.toString();
+        }
+
+        /** Return my decryption. */
+        String plaintext() {
+            StringBuilder result = new StringBuilder(_plain.length);
+            for (int c : _plain) {
+                result.append(_alphabet.toChar(c));
+            }
+            return result.toString();
+        }
+
+        /** Return my trigram score. */
+        long score() {
+            return _score;
+        }
+
+        /** The plugboard: _plug[C] is the partner of C, or C. */
+        private final int[] _plug;
+
+        /** The decryption. */
+        private final int[] _plain;
+
+        /** Trigram score of _plain. */
+        private final long _score;
+    }
+
+    /** The state of one island: a plugboard being improved and its
+     *  decryption, with scratch space for scoring changes. */
+    private class Climber {
+
+        /** A climber drawing its random starts from RANDOM. */
+        Climber(SplittableRandom random) {
+            int n = _cipher.length;
+            _random = random;
+            _plug = new int[_size];
+            _trial = new int[_size];
+            _mid = new int[n];
+            _plain = new int[n];
+            _changed = new int[n];
+            _old = new int[n];
+            _windows = new int[3 * n];
+            _stamps = new int[n];
+            _affected = new boolean[_size];
+        }
+
+        /** Climb from a random plugboard to a local optimum, first on
+         *  bigrams and then on trigrams, and return the result. */
+        Result climb() {
+            Arrays.fill(_plug, 0, _size, -1);
+            int[] letters = Permutation.identity(_size);
+            for (int k = _size - 1; k > 0; k--) {
+                int j = _random.nextInt(k + 1);
+                int t = letters[k];
+                letters[k] = letters[j];
+                letters[j] = t;
+            }
+            int used = _random.nextInt(_pairs + 1);
+            _pairCount = used;
+            for (int k = 0; k < _size; k++) {
+                _plug[letters[k]] = k < 2 * used
+                    ? letters[k ^ 1] : letters[k];
+            }
+            for (int n = 2; n <= 3; n++) {
+                _n = n;
+                _table = n == 2 ? _ngrams._bigrams : _ngrams._trigrams;
+                decrypt();
+                while (improve()) {
+                    continue;
+                }
+            }
+            return result(_plug);
+        }
+
+        /** Return a result for the plugboard PLUG, scored on
+         *  trigrams. */
+        Result result(int[] plug) {
+            System.arraycopy(plug, 0, _plug, 0, _size);
+            _n = 3;
+            _table = _ngrams._trigrams;
+            decrypt();
+            return new Result(_plug.clone(), _plain.clone(), _score);
+        }
+
+        /** Decrypt the whole ciphertext with _plug and score it. */
+        private void decrypt() {
+            for (int i = 0; i < _cipher.length; i++) {
+                _mid[i] = _core[i * _size + _plug[_cipher[i]]];
+                _plain[i] = _plug[_mid[i]];
+            }
+            _score = 0;
+            for (int w = 0; w + _n <= _plain.length; w++) {
+                _score += window(w);
+            }
+        }
+
+        /** Try every change of one pair, keeping each that raises the
+         *  score.  Returns true iff any was kept. */
+        private boolean improve() {
+            boolean improved = false;
+            int first = _random.nextInt(_size);
+            for (int a0 = 0; a0 < _size; a0++) {
+                int a = (first + a0) % _size;
+                for (int b = 0; b < _size; b++) {
+                    if (b == a) {
+                        continue;
+                    }
+                    if (trySwap(a, b)) {
+                        improved = true;
+                    }
+                    if (_plug[a] != a && _plug[b] != b && _plug[a] != b
+                        && tryExchange(a, b)) {
+                        improved = true;
+                    }
+                }
+            }
+            return improved;
+        }
+
+        /** Try plugging A to B, unplugging their partners, or unplugging
+         *  them if they are plugged together.  Keep the change and return
+         *  true iff it raises the score. */
+        private boolean trySwap(int a, int b) {
+            System.arraycopy(_plug, 0, _trial, 0, _size);
+            int pairs = _pairCount;
+            if (_trial[a] == b) {
+                _trial[a] = a;
+                _trial[b] = b;
+                pairs -= 1;
+            } else {
+                pairs += 1;
+                for (int x : new int[] { a, b }) {
+                    if (_trial[x] != x) {
+                        _trial[_trial[x]] = _trial[x];
+                        _trial[x] = x;
+                        pairs -= 1;
+                    }
+                }
+                if (pairs > _pairs) {
+                    return false;
+                }
+                _trial[a] = b;
+                _trial[b] = a;
+            }
+            return tryTrial(pairs);
+        }
+
+        /** Try exchanging the partners of A and B, both plugged but not to
+         *  each other: A with B and their partners with each other.  Keep
+         *  the change and return true iff it raises the score. */
+        private boolean tryExchange(int a, int b) {
+            System.arraycopy(_plug, 0, _trial, 0, _size);
+            int pa = _plug[a];
+            int pb = _plug[b];
+            _trial[a] = b;
+            _trial[b] = a;
+            _trial[pa] = pb;
+            _trial[pb] = pa;
+            return tryTrial(_pairCount);
+        }
+
+        /** Score the plugboard in _trial, which has PAIRS pairs, against
+         *  _plug, rescoring only what changes.  Keep it and return true
+         *  iff it scores higher. */
+        private boolean tryTrial(int pairs) {
+            _tried.incrementAndGet();
+            int n = _cipher.length;
+            Arrays.fill(_affected, false);
+            int letters = 0;
+            for (int c = 0; c < _size; c++) {
+                if (_trial[c] != _plug[c]) {
+                    _affected[c] = true;
+                    letters += 1;
+                }
+            }
+            if (letters == 0) {
+                return false;
+            }
+            int count = 0;
+            _stamp += 1;
+            for (int c = 0; c < _size; c++) {
+                if (_affected[c]) {
+                    for (int i : _byLetter[c]) {
+                        count = mark(i, count);
+                    }
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                if (_affected[_mid[i]]) {
+                    count = mark(i, count);
+                }
+            }
+            int windows = 0;
+            _stamp += 1;
+            for (int k = 0; k < count; k++) {
+                int i = _changed[k];
+                for (int w = Math.max(0, i - _n + 1);
+                     w <= i && w + _n <= n; w++) {
+                    if (_stamps[w] != _stamp) {
+                        _stamps[w] = _stamp;
+                        _windows[windows++] = w;
+                    }
+                }
+            }
+            long delta = 0;
+            for (int k = 0; k < windows; k++) {
+                delta -= window(_windows[k]);
+            }
+            for (int k = 0; k < count; k++) {
+                int i = _changed[k];
+                _old[k] = _mid[i];
+                _mid[i] = _core[i * _size + _trial[_cipher[i]]];
+                _plain[i] = _trial[_mid[i]];
+            }
+            for (int k = 0; k < windows; k++) {
+                delta += window(_windows[k]);
+            }
+            if (delta > 0) {
+                int[] t = _plug;
+                _plug = _trial;
+                _trial = t;
+                _pairCount = pairs;
+                _score += delta;
+                return true;
+            }
+            for (int k = 0; k < count; k++) {
+                int i = _changed[k];
+                _mid[i] = _old[k];
+                _plain[i] = _plug[_mid[i]];
+            }
+            return false;
+        }
+
+        /** Add position I to the COUNT changed positions, unless already
+         *  there, and return the new count. */
+        private int mark(int i, int count) {
+            if (_stamps[i] == _stamp) {
+                return count;
+            }
+            _stamps[i] = _stamp;
+            _changed[count] = i;
+            return count + 1;
+        }
+
+        /** Return the score of the _n-gram of _plain starting at W. */
+        private int window(int w) {
+            int index = _plain[w] * _size + _plain[w + 1];
+            if (_n == 3) {
+                index = index * _size + _plain[w + 2];
+            }
+            return _table[index];
+        }
+
+        /** Source of random starts. */
+        private final SplittableRandom _random;
+
+        /** The current plugboard: _plug[C] is the partner of C, or C. */
+        private int[] _plug;
+
+        /** A plugboard being tried. */
+        private int[] _trial;
+
+        /** Number of pairs in _plug. */
+        private int _pairCount;
+
+        /** _mid[I] is character I after the plugboard and the rotors. */
+        private final int[] _mid;
+
+        /** The decryption with _plug. */
+        private final int[] _plain;
+
+        /** Positions changed by the plugboard being tried. */
+        private final int[] _changed;
+
+        /** Former values of _mid at those positions. */
+        private final int[] _old;
+
+        /** Starts of the n-grams covering them. */
+        private final int[] _windows;
+
+        /** Marks of positions and windows already listed, by _stamp. */
+        private final int[] _stamps;
+
+        /** Current mark for _stamps. */
+        private int _stamp;
+
+        /** Letters whose partner differs between _plug and _trial. */
+        private final boolean[] _affected;
+
+        /** Length of the n-grams scored now: 2 or 3. */
+        private int _n;
+
+        /** Table of n-gram scores in use. */
+        private int[] _table;
+
+        /** Score of _plain on the table in use. */
+        private long _score;
+    }
+
+    /** Climbs run when none are specified. */
+    static final int DEFAULT_RESTARTS = 64;
+
+    /** Scale of the fixed-point n-gram scores. */
+    private static final double SCALE = 1000;
+
+    /** Count taken for n-grams absent from the sample. */
+    private static final double UNSEEN = 0.01;
+
+    /** Largest trigram table built. */
+    private static final long MAX_TRIGRAMS = 1 << 24;
+
+    /** The alphabet of the machine. */
+    private final Alphabet _alphabet;
+
+    /** Size of _alphabet. */
+    private final int _size;
+
+    /** The scoring tables. */
+    private final Ngrams _ngrams;
+
+    /** Largest number of plugboard pairs. */
+    private final int _pairs;
+
+    /** The ciphertext, as indices into _alphabet. */
+    private final int[] _cipher;
+
+    /** The rotors' substitution at each position of _cipher; see core. */
+    private final int[] _core;
+
+    /** _byLetter[C] lists the positions of C in _cipher. */
+    private final int[][] _byLetter;
+
+    /** The best result so far, or null. */
+    private final AtomicReference<Result> _best = new AtomicReference<>();
+
+    /** Number of plugboard changes scored. */
+    private final AtomicLong _tried = new AtomicLong();
+
+    /** Time spent in search, in nanoseconds. */
+    private long _elapsed;
+
+}
@@ -0,0 +1,135 @@
+package enigma;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import static enigma.EnigmaException.*;
+
+/** A bounded queue from one producer thread to one consumer thread,
+ *  holding a fixed set of slots that are filled in place and reused, so
+ *  passing items allocates nothing.  The producer claims the next free
+ *  slot, fills it, and publishes it; the consumer takes the next
+ *  published slot, reads it, and releases it.  The two sides share only
+ *  two counters, each written by one side, so there are no locks: a side
+ *  that must wait (the producer when all slots are full, which is what
+ *  limits how far it can run ahead, or the consumer when none is
+ *  published) spins briefly, then yields, then parks for short
+ *  intervals.
+ *  @author Jonny W.
+ */
+class RingBuffer<T> {
+
+    /** A ring of CAPACITY slots, a power of 2, made by SLOTS. */
+    @SuppressWarnings("unchecked")
+    RingBuffer(int capacity, Supplier<T> slots) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw error("ring capacity must be a power of 2");
+        }
+        _slots = (T[]) new Object[capacity];
+        for (int index = 0; index < capacity; index++) {
+            _slots[index] = slots.get();
+        }
+        _mask = capacity - 1;
+    }
+
+    /** Return the next free slot, waiting until there is one.  Until it
+     *  is published, claiming again returns the same slot.  Called only
+     *  by the producer.  Throws CancellationException if I am closed or
+     *  the caller is interrupted while waiting. */
+    T claim() {
+        long tail = _tail.getPlain();
+        int waits = 0;
+        while (tail - _headSeen >= _slots.length) {
+            _headSeen = _head.getAcquire();
+            if (tail - _headSeen >= _slots.length) {
+                waits = backOff(waits);
+            }
+        }
+        return _slots[(int) tail & _mask];
+    }
+
+    /** Pass the slot last claimed to the consumer.  Called only by the
+     *  producer. */
+    void publish() {
+        _tail.setRelease(_tail.getPlain() + 1);
+    }
+
+    /** Return the next published slot, waiting until there is one.
+     *  Until it is released, taking again returns the same slot.  Called
+     *  only by the consumer.  Throws CancellationException if I am
+     *  closed or the caller is interrupted while waiting. */
+    T take() {
+        long head = _head.getPlain();
+        int waits = 0;
+        while (head >= _tailSeen) {
+            _tailSeen = _tail.getAcquire();
+            if (head >= _tailSeen) {
+                waits = backOff(waits);
+            }
+        }
+        return _slots[(int) head & _mask];
+    }
+
+    /** Return the slot last taken to the producer.  Called only by the
+     *  consumer. */
+    void release() {
+        _head.setRelease(_head.getPlain() + 1);
+    }
+
+    /** Make any wait on either side, now or later, end in a
+     *  CancellationException. */
+    void close() {
+        _closed = true;
+    }
+
+    /** Wait a little, having already waited WAITS times, and return the
+     *  new number of waits. */
+    private int backOff(int waits) {
+        if (_closed || Thread.currentThread().isInterrupted()) {
+            throw new CancellationException();
+        }
+        if (waits < SPINS) {
+            Thread.onSpinWait();
+        } else if (waits < SPINS + YIELDS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        return waits + 1;
+    }
+
+    /** Number of busy waits before yielding: none on a single processor,
+     *  where the other side cannot run while we spin. */
+    private static final int SPINS =
+        Runtime.getRuntime().availableProcessors() > 1 ? 100 : 0;
+
+    /** Number of yields before parking. */
+    private static final int YIELDS = 10;
+
+    /** Length of each park, in nanoseconds. */
+    private static final long PARK_NANOS = 50_000;
+
+    /** The slots. */
+    private final T[] _slots;
+
+    /** Mask reducing a count to an index into _slots. */
+    private final int _mask;
+
+    /** Number of slots ever released.  Written only by the consumer. */
+    private final AtomicLong _head = new AtomicLong();
+
+    /** Number of slots ever published.  Written only by the producer. */
+    private final AtomicLong _tail = new AtomicLong();
+
+    /** The producer's last reading of _head. */
+    private long _headSeen;
+
+    /** The consumer's last reading of _tail. */
+    private long _tailSeen;
+
+    /** True once closed. */
+    private volatile boolean _closed;
+
+}
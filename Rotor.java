@@ -62,27 +62,15 @@ class Rotor {
     /** Return the conversion of P (an integer in the range 0..size()-1)
      *  according to my permutation. */
     int convertForward(int p) {
-        int curPermInt = curSetting + p;
-        int result = _permutation.permute(curPermInt);
-        result -= curSetting;
-        result = _permutation.wrap(result);
-        if (Main.verbose()) {
-            System.err.printf("%c -> ", alphabet().toChar(result));
-        }
-        return result;
+        return _permutation.wrap(
+                _permutation.permute(curSetting + p) - curSetting);
     }
 
     /** Return the conversion of E (an integer in the range 0..size()-1)
      *  according to the inverse of my permutation. */
     int convertBackward(int e) {
-        int curPermInt = curSetting + e;
-        int result = _permutation.invert(curPermInt);
-        result -= curSetting;
-        result = _permutation.wrap(result);
-        if (Main.verbose()) {
-            System.err.printf("%c -> ", alphabet().toChar(result));
-        }
-        return result;
+        return _permutation.wrap(
+                _permutation.invert(curSetting + e) - curSetting);
     }
 
     /** Returns the positions of the notches, as a string giving the letters
@@ -94,14 +82,12 @@ class Rotor {
     /** Returns true iff I am positioned to allow the rotor to my left
      *  to advance. */
     boolean atNotch() {
-        if (notches().length() != 0) {
-            String curNotch =
-                    Character.toString(
-                            _permutation.alphabet().toChar(curSetting));
-            if (notches().contains(curNotch)) {
-                return true;
-            }
-        }
+        return atNotch(curSetting);
+    }
+
+    /** Returns true iff I would allow the rotor to my left to advance
+     *  when at setting POSN.  By default, I have no notches. */
+    boolean atNotch(int posn) {
         return false;
     }
 
@@ -0,0 +1,219 @@
+package enigma;
+
+import java.util.Arrays;
+
+import static enigma.EnigmaException.*;
+
+/** A set of machines of one specification, run in lock step and stored
+ *  as a structure of arrays.  Each machine is a lane: its rotor settings
+ *  are kept in one int array per slot, indexed by lane, and its
+ *  plugboard in one row of a flat table.  Each character is stepped and
+ *  converted slot by slot across all lanes, so the inner loops are short
+ *  runs of table lookups with no object references, suited to "one
+ *  message under many keys" and "many messages under keys of one
+ *  shape".  The loops are plain scalar Java: there is no explicit SIMD
+ *  code, which would need the incubating jdk.incubator.vector module at
+ *  compile time.
+ *  @author Jonny W.
+ */
+class ScalarMachineBatch {
+
+    /** A batch of LANES machines with the rotors of SPEC, all at the 0
+     *  setting with no plugboard swaps. */
+    ScalarMachineBatch(MachineSpec spec, int lanes) {
+        if (lanes < 1) {
+            throw error("a batch needs at least one lane");
+        }
+        _spec = spec;
+        _lanes = lanes;
+        _size = spec.size();
+        int n = spec.numRotors();
+        _forward = new int[n][];
+        _inverse = new int[n][];
+        _rotates = new boolean[n];
+        _notch = new int[n][_size];
+        for (int k = 0; k < n; k++) {
+            Permutation perm = spec.rotor(k).permutation();
+            _forward[k] = perm.forwardTable();
+            _inverse[k] = perm.inverseTable();
+            _rotates[k] = spec.rotates(k);
+            for (int p = 0; p < _size; p++) {
+                _notch[k][p] = spec.atNotch(k, p) ? 1 : 0;
+            }
+        }
+        _pos = new int[n][lanes];
+        _plugboard = new int[lanes * _size];
+        for (int lane = 0; lane < lanes; lane++) {
+            setPlugboard(lane, null);
+        }
+        _chars = new int[lanes];
+    }
+
+    /** Return the number of lanes. */
+    int lanes() {
+        return _lanes;
+    }
+
+    /** Return the specification shared by all lanes. */
+    MachineSpec spec() {
+        return _spec;
+    }
+
+    /** Return the setting of rotor #K on LANE. */
+    int setting(int lane, int k) {
+        return _pos[k][lane];
+    }
+
+    /** Set the rotors on LANE to SETTINGS, where SETTINGS[K] is the
+     *  setting of rotor #K and SETTINGS[0] (the reflector) is ignored. */
+    void setPositions(int lane, int[] settings) {
+        for (int k = 1; k < _pos.length; k++) {
+            _pos[k][lane] = settings[k];
+        }
+    }
+
+    /** Set the plugboard of LANE to PLUGBOARD, or to the identity if it
+     *  is null. */
+    void setPlugboard(int lane, Permutation plugboard) {
+        int base = lane * _size;
+        for (int c = 0; c < _size; c++) {
+            _plugboard[base + c] =
+                plugboard == null ? c : plugboard.permute(c);
+        }
+    }
+
+    /** Set LANE to the current settings and plugboard of M, which must
+     *  have my specification. */
+    void load(int lane, Machine m) {
+        if (m.spec() != _spec) {
+            throw error("machine does not match batch");
+        }
+        for (int k = 1; k < _pos.length; k++) {
+            _pos[k][lane] = m.setting(k);
+        }
+        setPlugboard(lane, m.plugboard());
+    }
+
+    /** Advance the rotors on every lane, as for one keypress. */
+    void step() {
+        int n = _pos.length;
+        for (int k = 1; k < n; k++) {
+            if (!_rotates[k]) {
+                continue;
+            }
+            int[] pk = _pos[k];
+            if (k == n - 1) {
+                for (int lane = 0; lane < _lanes; lane++) {
+                    int q = pk[lane] + 1;
+                    pk[lane] = q == _size ? 0 : q;
+                }
+                continue;
+            }
+            int[] right = _notch[k + 1];
+            int[] pr = _pos[k + 1];
+            int[] self = k > 1 && _rotates[k - 1] ? _notch[k] : NEVER;
+            int selfMask = self == NEVER ? 0 : -1;
+            for (int lane = 0; lane < _lanes; lane++) {
+                int q = pk[lane]
+                    + (right[pr[lane]] | self[pk[lane] & selfMask]);
+                pk[lane] = q == _size ? 0 : q;
+            }
+        }
+    }
+
+    /** Step every lane, then replace C[L], an index into my alphabet,
+     *  with its encipherment on lane L, for every lane L. */
+    void convert(int[] c) {
+        step();
+        int n = _pos.length;
+        plug(c);
+        for (int k = n - 1; k >= 0; k--) {
+            map(_forward[k], _pos[k], c);
+        }
+        for (int k = 1; k < n; k++) {
+            map(_inverse[k], _pos[k], c);
+        }
+        plug(c);
+    }
+
+    /** Encipher MSG[OFF .. OFF+LEN-1] on every lane, storing the result
+     *  for lane L in DST[L*LEN .. L*LEN+LEN-1]. */
+    void convertSame(int[] msg, int off, int len, int[] dst) {
+        for (int index = 0; index < len; index++) {
+            Arrays.fill(_chars, msg[off + index]);
+            convert(_chars);
+            for (int lane = 0; lane < _lanes; lane++) {
+                dst[lane * len + index] = _chars[lane];
+            }
+        }
+    }
+
+    /** Encipher on each lane L its own message of LEN characters,
+     *  SRC[L*LEN .. L*LEN+LEN-1], storing the result at the same place
+     *  in DST, which may be SRC. */
+    void convertEach(int[] src, int[] dst, int len) {
+        for (int index = 0; index < len; index++) {
+            for (int lane = 0; lane < _lanes; lane++) {
+                _chars[lane] = src[lane * len + index];
+            }
+            convert(_chars);
+            for (int lane = 0; lane < _lanes; lane++) {
+                dst[lane * len + index] = _chars[lane];
+            }
+        }
+    }
+
+    /** Replace each C[L] with its image under the plugboard of lane L. */
+    private void plug(int[] c) {
+        for (int lane = 0, base = 0; lane < _lanes; lane++, base += _size) {
+            c[lane] = _plugboard[base + c[lane]];
+        }
+    }
+
+    /** Replace each C[L] with its image under a rotor with permutation
+     *  table TABLE at setting POS[L]. */
+    private void map(int[] table, int[] pos, int[] c) {
+        for (int lane = 0; lane < _lanes; lane++) {
+            int p = c[lane] + pos[lane];
+            if (p >= _size) {
+                p -= _size;
+            }
+            int result = table[p] - pos[lane];
+            c[lane] = result < 0 ? result + _size : result;
+        }
+    }
+
+    /** A notch table for a slot whose own notch never matters. */
+    private static final int[] NEVER = { 0 };
+
+    /** The specification shared by all lanes. */
+    private final MachineSpec _spec;
+
+    /** Number of lanes. */
+    private final int _lanes;
+
+    /** Size of the alphabet. */
+    private final int _size;
+
+    /** _forward[K] is the permutation table of rotor #K at setting 0. */
+    private final int[][] _forward;
+
+    /** _inverse[K] is the inverse of _forward[K]. */
+    private final int[][] _inverse;
+
+    /** _rotates[K] is true iff rotor #K has a pawl. */
+    private final boolean[] _rotates;
+
+    /** _notch[K][P] is 1 iff rotor #K is at a notch at setting P. */
+    private final int[][] _notch;
+
+    /** _pos[K][L] is the setting of rotor #K on lane L. */
+    private final int[][] _pos;
+
+    /** Entry L * size + C is the plugboard image of C on lane L. */
+    private final int[] _plugboard;
+
+    /** Characters being converted, one per lane. */
+    private final int[] _chars;
+
+}
@@ -0,0 +1,378 @@
+package enigma;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.security.SecureRandom;
+
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static enigma.EnigmaException.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/** A long-running encryption service on a local socket.  The
+ *  configuration is read once; clients then send requests of one line
+ *  each, of at most MAX_LINE characters, and get one line back, "OK ..."
+ *  or "ERR <message>":
+ *
+ *    * SETTINGS       configure the session, as a settings line for Main
+ *    CONVERT MESSAGE  encrypt or decrypt MESSAGE (spaces are ignored),
+ *                     replying with the result in groups of five
+ *    SESSION ID       switch to the existing session ID
+ *    STATS            reply with request latency percentiles
+ *    QUIT             close the connection
+ *
+ *  A session is a machine whose rotors keep advancing from one CONVERT
+ *  to the next, as if all its messages were one.  Each connection starts
+ *  in a new session, whose id is sent on connecting.  Ids are random and
+ *  unguessable, so that only a client that was given an id may resume
+ *  its session, from another connection, until it has been idle for
+ *  longer than the server's idle time.
+ *  @author Jonny W.
+ */
+class Server {
+
+    /** A server configuring sessions with MAIN, whose configuration has
+     *  been read into CONFIG, and evicting sessions after IDLEMILLIS
+     *  milliseconds without use. */
+    Server(Main main, Machine config, long idleMillis) {
+        _main = main;
+        _config = config;
+        _idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        _connections = connectionExecutor();
+        _evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "enigma-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, idleMillis / 4);
+        _evictor.scheduleAtFixedRate(this::evictIdle, period, period,
+                                     TimeUnit.MILLISECONDS);
+    }
+
+    /** Return an executor running each task on a thread of its own: a
+     *  virtual thread where the JVM has them, and otherwise a pooled
+     *  platform thread. */
+    private static ExecutorService connectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException excp) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "enigma-connection");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /** Accept connections on the loopback interface at PORT (0 for any
+     *  free port) until the server is closed, reporting the port on the
+     *  standard error. */
+    void serve(int port) {
+        InetAddress local = InetAddress.getLoopbackAddress();
+        try (ServerSocket socket = new ServerSocket(port, BACKLOG, local)) {
+            _socket = socket;
+            System.err.printf("listening on port %d%n",
+                              socket.getLocalPort());
+            while (!socket.isClosed()) {
+                Socket client;
+                try {
+                    client = socket.accept();
+                } catch (IOException excp) {
+                    if (socket.isClosed()) {
+                        break;
+                    }
+                    continue;
+                }
+                _connections.execute(() -> handle(client));
+            }
+        } catch (IOException excp) {
+            throw error("could not listen on port %d", port);
+        } finally {
+            close();
+        }
+    }
+
+    /** Stop accepting connections and release my threads. */
+    void close() {
+        try {
+            if (_socket != null) {
+                _socket.close();
+            }
+        } catch (IOException excp) {
+            /* Already closed. */
+        }
+        _connections.shutdownNow();
+        _evictor.shutdownNow();
+    }
+
+    /** Serve the requests arriving on CLIENT until it sends QUIT or
+     *  disconnects, or sends a line too long to be a request. */
+    private void handle(Socket client) {
+        try (Socket s = client;
+             LineReader in = new LineReader(
+                 new InputStreamReader(s.getInputStream(), UTF_8), MAX_LINE);
+             Writer out = new BufferedWriter(
+                 new OutputStreamWriter(s.getOutputStream(), UTF_8))) {
+            Session session = session(null);
+            out.write("OK session " + session._id + "\n");
+            out.flush();
+            while (true) {
+                String line = in.readLine();
+                if (line == null || line.equals("QUIT")) {
+                    break;
+                } else if (line.length() > MAX_LINE) {
+                    out.write("ERR line too long\n");
+                    out.flush();
+                    break;
+                }
+                long start = System.nanoTime();
+                String reply;
+                if (line.startsWith("SESSION ")) {
+                    Session resumed = session(line.substring(8).trim());
+                    if (resumed == null) {
+                        reply = "ERR no such session";
+                    } else {
+                        session = resumed;
+                        reply = "OK session " + session._id;
+                    }
+                } else {
+                    reply = reply(session, line);
+                }
+                out.write(reply);
+                out.write('\n');
+                if (!in.ready()) {
+                    out.flush();
+                }
+                _latency.record(System.nanoTime() - start);
+            }
+        } catch (IOException excp) {
+            /* The client has gone; its session stays until evicted. */
+        }
+    }
+
+    /** Return the reply to the request LINE in SESSION. */
+    private String reply(Session session, String line) {
+        try {
+            session.touch();
+            if (line.startsWith("*")) {
+                synchronized (session) {
+                    Machine m = newMachine();
+                    _main.configure(m, line);
+                    session._machine = m;
+                }
+                return "OK";
+            } else if (line.startsWith("CONVERT ")
+                       || line.equals("CONVERT")) {
+                String msg = line.substring(7).replace(" ", "");
+                Alphabet alpha = _config.alphabet();
+                for (int index = 0; index < msg.length(); index++) {
+                    if (!alpha.contains(msg.charAt(index))) {
+                        return "ERR character " + msg.charAt(index)
+                            + " not in alphabet";
+                    }
+                }
+                StringBuilder reply = new StringBuilder("OK ");
+                synchronized (session) {
+                    if (session._machine == null) {
+                        return "ERR must have a setting";
+                    }
+                    Main.appendMessageLine(reply,
+                                           session._machine.convert(msg));
+                }
+                reply.setLength(reply.length()
+                                - System.lineSeparator().length());
+                return reply.toString();
+            } else if (line.equals("STATS")) {
+                return "OK sessions=" + _sessions.size() + " "
+                    + _latency.summary();
+            } else {
+                return "ERR unknown request";
+            }
+        } catch (EnigmaException excp) {
+            return "ERR " + excp.getMessage();
+        }
+    }
+
+    /** Return a machine with my configuration's rotor catalog. */
+    private Machine newMachine() {
+        return new Machine(_config.alphabet(), _config.numRotors(),
+                           _config.numPawls(), _config.allRotors());
+    }
+
+    /** Return the existing session named ID, or null if there is none,
+     *  or a new session with a fresh random id if ID is null. */
+    private Session session(String id) {
+        Session result;
+        if (id != null) {
+            result = _sessions.get(id);
+        } else {
+            do {
+                byte[] token = new byte[SESSION_ID_BYTES];
+                _random.nextBytes(token);
+                result = new Session(HexFormat.of().formatHex(token));
+            } while (_sessions.putIfAbsent(result._id, result) != null);
+        }
+        if (result != null) {
+            result.touch();
+        }
+        return result;
+    }
+
+    /** Remove sessions idle for longer than _idleNanos. */
+    private void evictIdle() {
+        long now = System.nanoTime();
+        _sessions.values().removeIf(s -> now - s._lastUsed > _idleNanos);
+    }
+
+    /** A reader of lines of bounded length, so that a client cannot
+     *  exhaust the heap by sending one endless line. */
+    private static class LineReader implements AutoCloseable {
+
+        /** A reader of lines from IN, reading no more than LIMIT
+         *  characters of any one line. */
+        LineReader(Reader in, int limit) {
+            _in = in;
+            _limit = limit;
+        }
+
+        /** Return the next line, without its terminator ("\n", "\r" or
+         *  "\r\n"), or null at the end of the input.  A line longer than
+         *  my limit is cut short after one more character, so that the
+         *  result is longer than the limit, and the rest of it is left
+         *  unread. */
+        String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            while (true) {
+                if (_pos == _end) {
+                    int n = _in.read(_buf, 0, _buf.length);
+                    if (n < 0) {
+                        return line.length() == 0 ? null : line.toString();
+                    }
+                    _pos = 0;
+                    _end = n;
+                }
+                char c = _buf[_pos++];
+                if (_afterReturn) {
+                    _afterReturn = false;
+                    if (c == '\n') {
+                        continue;
+                    }
+                }
+                if (c == '\n' || c == '\r') {
+                    _afterReturn = c == '\r';
+                    return line.toString();
+                }
+                line.append(c);
+                if (line.length() > _limit) {
+                    return line.toString();
+                }
+            }
+        }
+
+        /** Return true iff a character can be read without blocking. */
+        boolean ready() throws IOException {
+            return _pos < _end || _in.ready();
+        }
+
+        @Override
+        public void close() throws IOException {
+            _in.close();
+        }
+
+        /** Source of characters. */
+        private final Reader _in;
+
+        /** Greatest length of a line. */
+        private final int _limit;
+
+        /** Characters read from _in, of which _buf[_pos .. _end-1] are
+         *  not yet returned. */
+        private final char[] _buf = new char[BUFFER_SIZE];
+
+        /** Bounds of the unread characters in _buf. */
+        private int _pos, _end;
+
+        /** True iff the last character read was a carriage return. */
+        private boolean _afterReturn;
+    }
+
+    /** The state of one client session. */
+    private static class Session {
+
+        /** A new, unconfigured session named ID. */
+        Session(String id) {
+            _id = id;
+        }
+
+        /** Note that this session has just been used. */
+        void touch() {
+            _lastUsed = System.nanoTime();
+        }
+
+        /** My name. */
+        private final String _id;
+
+        /** My machine, or null until configured. */
+        private Machine _machine;
+
+        /** Value of System.nanoTime() when I was last used. */
+        private volatile long _lastUsed;
+    }
+
+    /** Pending connections allowed by the listening socket. */
+    private static final int BACKLOG = 128;
+
+    /** Greatest length of a request line, in characters. */
+    private static final int MAX_LINE = 4 << 20;
+
+    /** Size of a connection's input buffer, in characters. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** Length in bytes of a session id, before it is written in
+     *  hexadecimal. */
+    private static final int SESSION_ID_BYTES = 16;
+
+    /** Configures new sessions. */
+    private final Main _main;
+
+    /** The configuration read by _main, holding the rotor catalog. */
+    private final Machine _config;
+
+    /** Sessions unused for this long are evicted. */
+    private final long _idleNanos;
+
+    /** Sessions by id. */
+    private final Map<String, Session> _sessions = new ConcurrentHashMap<>();
+
+    /** Source of ids for new sessions. */
+    private final SecureRandom _random = new SecureRandom();
+
+    /** Runs connections. */
+    private final ExecutorService _connections;
+
+    /** Runs evictIdle periodically. */
+    private final ScheduledExecutorService _evictor;
+
+    /** Request latencies. */
+    private final LatencyHistogram _latency = new LatencyHistogram();
+
+    /** The listening socket, once open. */
+    private volatile ServerSocket _socket;
+
+}
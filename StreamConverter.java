@@ -0,0 +1,217 @@
+package enigma;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.UnmappableCharacterException;
+
+import static enigma.EnigmaException.*;
+
+/** The conversion shared by the stream adapters (EnigmaInputStream,
+ *  EnigmaOutputStream, EnigmaReader, EnigmaWriter and EnigmaChannels):
+ *  converts arrays of characters or bytes in place with a machine, which
+ *  advances as they pass through.  Symbols in the machine's alphabet are
+ *  gathered into a fixed block of indices and converted in bulk; symbols
+ *  not in it are handled according to a Policy.  Bytes are taken as the
+ *  characters 0 to 255, which suits a byte configuration or an alphabet
+ *  of ASCII or Latin-1 characters.  A rejected symbol is reported as a
+ *  CharacterCodingException, so that it reaches users of the adapters
+ *  as the IOException their interfaces promise.  It is reported before
+ *  any of the symbols passed with it are converted, leaving the machine
+ *  and the symbols as they were.
+ *  @author Jonny W.
+ */
+class StreamConverter {
+
+    /** What to do with a symbol that is not in the alphabet. */
+    enum Policy {
+        /** Leave it out of the output. */
+        DROP,
+        /** Copy it to the output unchanged; the rotors do not move. */
+        PASS,
+        /** Throw a RejectedSymbolException, converting nothing. */
+        REJECT
+    }
+
+    /** A converter of characters with M, treating symbols that are not
+     *  in its alphabet according to POLICY. */
+    StreamConverter(Machine m, Policy policy) {
+        _machine = m;
+        _policy = policy;
+        _alphabet = m.alphabet();
+    }
+
+    /** Return a converter of bytes with M, treating symbols that are not
+     *  in its alphabet according to POLICY.  Every character of the
+     *  alphabet must be one of the characters 0 to 255. */
+    static StreamConverter forBytes(Machine m, Policy policy) {
+        Alphabet alpha = m.alphabet();
+        for (int index = 0; index < alpha.size(); index++) {
+            if (alpha.toChar(index) > BYTE_MASK) {
+                throw error("alphabet does not fit in bytes");
+            }
+        }
+        return new StreamConverter(m, policy);
+    }
+
+    /** Convert BUF[OFF .. OFF+LEN-1] in place.  Returns the number of
+     *  symbols kept, which are moved to the start of that range. */
+    int convert(char[] buf, int off, int len)
+        throws CharacterCodingException {
+        if (_policy == Policy.REJECT) {
+            for (int index = off; index < off + len; index++) {
+                check(buf[index]);
+            }
+        }
+        int out = off;
+        for (int start = off; start < off + len; start += BLOCK_SIZE) {
+            int end = Math.min(off + len, start + BLOCK_SIZE);
+            int first = out;
+            int count = 0;
+            for (int index = start; index < end; index++) {
+                char c = buf[index];
+                int k = _alphabet.toInt(c);
+                if (k >= 0) {
+                    _indices[count] = k;
+                    count += 1;
+                } else if (_policy != Policy.PASS) {
+                    continue;
+                }
+                buf[out] = c;
+                out += 1;
+            }
+            _machine.convert(_indices, 0, count);
+            for (int index = first, next = 0; next < count; index++) {
+                if (_alphabet.toInt(buf[index]) >= 0) {
+                    buf[index] = _alphabet.toChar(_indices[next]);
+                    next += 1;
+                }
+            }
+        }
+        return out - off;
+    }
+
+    /** Convert BUF[OFF .. OFF+LEN-1] in place, as characters 0 to 255.
+     *  Returns the number of symbols kept, which are moved to the start
+     *  of that range. */
+    int convert(byte[] buf, int off, int len)
+        throws CharacterCodingException {
+        if (_policy == Policy.REJECT) {
+            for (int index = off; index < off + len; index++) {
+                check((char) (buf[index] & BYTE_MASK));
+            }
+        }
+        int out = off;
+        for (int start = off; start < off + len; start += BLOCK_SIZE) {
+            int end = Math.min(off + len, start + BLOCK_SIZE);
+            int first = out;
+            int count = 0;
+            for (int index = start; index < end; index++) {
+                byte b = buf[index];
+                int k = _alphabet.toInt((char) (b & BYTE_MASK));
+                if (k >= 0) {
+                    _indices[count] = k;
+                    count += 1;
+                } else if (_policy != Policy.PASS) {
+                    continue;
+                }
+                buf[out] = b;
+                out += 1;
+            }
+            _machine.convert(_indices, 0, count);
+            for (int index = first, next = 0; next < count; index++) {
+                if (_alphabet.toInt((char) (buf[index] & BYTE_MASK)) >= 0) {
+                    buf[index] = (byte) _alphabet.toChar(_indices[next]);
+                    next += 1;
+                }
+            }
+        }
+        return out - off;
+    }
+
+    /** Convert the bytes of BUF from START up to its position in place,
+     *  leaving its position just after the last byte kept. */
+    void convert(ByteBuffer buf, int start)
+        throws CharacterCodingException {
+        if (buf.hasArray()) {
+            int kept = convert(buf.array(), buf.arrayOffset() + start,
+                               buf.position() - start);
+            buf.position(start + kept);
+            return;
+        }
+        int end = buf.position();
+        if (_policy == Policy.REJECT) {
+            for (int index = start; index < end; index++) {
+                check((char) (buf.get(index) & BYTE_MASK));
+            }
+        }
+        int out = start;
+        for (int from = start; from < end; from += BLOCK_SIZE) {
+            int len = Math.min(end - from, BLOCK_SIZE);
+            buf.position(from);
+            buf.get(_bytes, 0, len);
+            int kept = convert(_bytes, 0, len);
+            buf.position(out);
+            buf.put(_bytes, 0, kept);
+            out += kept;
+        }
+        buf.position(out);
+    }
+
+    /** Throw a RejectedSymbolException if the symbol C is not in my
+     *  alphabet. */
+    private void check(char c) throws RejectedSymbolException {
+        if (!_alphabet.contains(c)) {
+            throw new RejectedSymbolException(c);
+        }
+    }
+
+    /** Reports a symbol that is not in the alphabet under the REJECT
+     *  policy. */
+    static class RejectedSymbolException
+        extends UnmappableCharacterException {
+
+        /** An exception rejecting the symbol C. */
+        RejectedSymbolException(char c) {
+            super(1);
+            _symbol = c;
+        }
+
+        /** Return the rejected symbol. */
+        char symbol() {
+            return _symbol;
+        }
+
+        @Override
+        public String getMessage() {
+            return String.format("character %c not in alphabet", _symbol);
+        }
+
+        /** The rejected symbol. */
+        private final char _symbol;
+
+        /** Serialization version. */
+        private static final long serialVersionUID = 1L;
+    }
+
+    /** Number of symbols converted at a time. */
+    static final int BLOCK_SIZE = 1 << 12;
+
+    /** Mask selecting the value of a byte. */
+    private static final int BYTE_MASK = 0xff;
+
+    /** The machine doing the conversion. */
+    private final Machine _machine;
+
+    /** The alphabet of _machine. */
+    private final Alphabet _alphabet;
+
+    /** What to do with symbols not in _alphabet. */
+    private final Policy _policy;
+
+    /** Alphabet indices of the symbols of the current block. */
+    private final int[] _indices = new int[BLOCK_SIZE];
+
+    /** Bytes of a buffer without an array being converted. */
+    private final byte[] _bytes = new byte[BLOCK_SIZE];
+
+}
@@ -0,0 +1,86 @@
+package enigma;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import java.util.Arrays;
+
+import static enigma.EnigmaException.*;
+
+/** A MachineListener that writes one line per converted character,
+ *  giving the rotor settings followed by each index the character passes
+ *  through, as in "[AXLE] F -> R -> ... -> Q".  Lines are collected in a
+ *  buffer that is written out in large blocks.
+ *  @author Jonny W.
+ */
+class TraceWriter implements MachineListener {
+
+    /** A trace of a machine with NUMROTORS rotor slots over ALPHABET,
+     *  written to OUT. */
+    TraceWriter(Alphabet alphabet, int numRotors, Writer out) {
+        _alphabet = alphabet;
+        _settings = new char[numRotors - 1];
+        Arrays.fill(_settings, alphabet.toChar(0));
+        _out = out;
+    }
+
+    @Override
+    public void rotorMoved(int slot, int setting) {
+        if (slot > 0) {
+            _settings[slot - 1] = _alphabet.toChar(setting);
+        }
+    }
+
+    @Override
+    public void plugboardApplied(int in, int out) {
+        if (_inside) {
+            _buffer.append(_alphabet.toChar(out)).append(LINE_SEPARATOR);
+            if (_buffer.length() >= FLUSH_SIZE) {
+                flush();
+            }
+        } else {
+            _buffer.append('[').append(_settings).append("] ")
+                .append(_alphabet.toChar(in)).append(" -> ")
+                .append(_alphabet.toChar(out)).append(" -> ");
+        }
+        _inside = !_inside;
+    }
+
+    @Override
+    public void rotorMapped(int slot, int in, int out) {
+        _buffer.append(_alphabet.toChar(out)).append(" -> ");
+    }
+
+    /** Write out everything traced so far. */
+    void flush() {
+        try {
+            _out.append(_buffer);
+            _out.flush();
+        } catch (IOException excp) {
+            throw error("could not write trace: %s", excp.getMessage());
+        }
+        _buffer.setLength(0);
+    }
+
+    /** The buffer is written out once it holds this many characters. */
+    private static final int FLUSH_SIZE = 1 << 16;
+
+    /** Terminates each trace line. */
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    /** Alphabet of the traced machine. */
+    private final Alphabet _alphabet;
+
+    /** Current settings of the rotors other than the reflector. */
+    private final char[] _settings;
+
+    /** Destination of the trace. */
+    private final Writer _out;
+
+    /** Trace text not yet written. */
+    private final StringBuilder _buffer = new StringBuilder();
+
+    /** True between the two plugboard events of a character. */
+    private boolean _inside;
+
+}